@@ -5,17 +5,47 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import remote.IAgency;
 import remote.ICarRentalCompany;
+import remote.ICarRentalCompanyAsync;
+import remote.ICarRentalReplica;
+import remote.ICompanyListener;
 import remote.IManagerSession;
 import remote.IReservationSession;
+import shared.AvailabilityChange;
+import shared.CarTypeCatalog;
+import shared.PartialResult;
+import shared.ReservationException;
+import transport.NioTransport;
 
 public class Agency implements IAgency {
 	
+	private static Logger logger = Logger.getLogger(Agency.class.getName());
+	
 	public static void main(String[] args) throws RemoteException {
 		// Disable security manager
 		System.setSecurityManager(null);
@@ -33,13 +63,81 @@ public class Agency implements IAgency {
 		System.out.println("Done.");
 	}
 	
-	private Map<String, IReservationSession> resSessions = new HashMap<>();
-	private Map<String, IManagerSession> manSessions = new HashMap<>();
+	// Sessions nobody called for -Dagency.sessionIdleTimeoutMillis are ended, see SessionRegistry
+	private long sessionIdleTimeoutMillis = Long.getLong("agency.sessionIdleTimeoutMillis", 10 * 60 * 1000);
+	// With -Dagency.transport=nio the sessions and the company listener are called over NioTransport instead of RMI
+	private String transport = System.getProperty("agency.transport", "rmi");
+	// With -Dagency.sessionMode=multiplexed, sessions aren't exported one by one, see ReservationService
+	private boolean multiplexedSessions = "multiplexed".equals(System.getProperty("agency.sessionMode"));
+	private SessionRegistry<ReservationSession> resSessions = multiplexedSessions
+			? new SessionRegistry<>(sessionIdleTimeoutMillis, new ReservationService())
+			: new SessionRegistry<>(sessionIdleTimeoutMillis, transport);
+	private SessionRegistry<ManagerSession> manSessions = new SessionRegistry<>(sessionIdleTimeoutMillis, transport);
+	// Manager sessions have no state, so when multiplexing all managers share this one
+	private IManagerSession sharedManagerSession;
+	private ScheduledExecutorService sessionSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "agency-session-sweeper");
+		thread.setDaemon(true);
+		return thread;
+	});
 
-	private Map<String, ICarRentalCompany> companies = new HashMap<>();
+	private CompanyRegistry companies = new CompanyRegistry();
+	// The car types of every company, which the companies keep up to date through the listener
+	private ConcurrentMap<String, CarTypeCatalog> catalogs = new ConcurrentHashMap<>();
+	private ICompanyListener listener;
+	// Answers to availability queries, kept fresh by the companies through the listener as well
+	private AvailabilityCache availability = new AvailabilityCache(
+			Long.getLong("agency.availabilityMaxStalenessMillis", 2000),
+			Integer.getInteger("agency.availabilityCacheSize", 10000));
+	
+	// Read replicas of the companies, which answer queries at most -Dagency.replicaMaxLagMillis behind
+	private ReplicaSet replicas = new ReplicaSet(Long.getLong("agency.replicaMaxLagMillis", 1000));
+	private ScheduledExecutorService replicaMonitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "agency-replica-monitor");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	// Calls to companies that can't be called without waiting, i.e. over RMI, run on these
+	// threads, see callAll. Those over NioTransport don't need a thread while they're on their way.
+	private ExecutorService fanOut = Executors.newFixedThreadPool(
+			Integer.getInteger("agency.fanOutThreads", 16), runnable -> {
+				Thread thread = new Thread(runnable, "agency-fan-out");
+				thread.setDaemon(true);
+				return thread;
+			});
+	// How long a call to all companies waits for their answers, set with -Dagency.callTimeoutMillis
+	private long callTimeoutMillis = Long.getLong("agency.callTimeoutMillis", 5000);
+	// Every company and replica is called through a CompanyMonitor, calls that take longer
+	// than the call timeout count as failed
+	private CompanyMonitor.Settings monitorSettings = new CompanyMonitor.Settings(
+			Integer.getInteger("agency.breakerFailures", 5),
+			Long.getLong("agency.breakerOpenMillis", 5000),
+			callTimeoutMillis);
+	// A query that a company didn't answer within this percentile of its latencies is also
+	// sent to a replica (or to the company, if a replica was asked first), see hedge
+	private double hedgePercentile = Double.parseDouble(System.getProperty("agency.hedgePercentile", "95"));
+	// Until a company's latencies are known
+	private long hedgeDelayMillis = Long.getLong("agency.hedgeDelayMillis", 50);
+	private ScheduledExecutorService hedgeTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "agency-hedge-timer");
+		thread.setDaemon(true);
+		return thread;
+	});
 	
 	public Agency() {
+		long period = Math.max(1, sessionIdleTimeoutMillis / 2);
+		sessionSweeper.scheduleWithFixedDelay(() -> {
+			int evicted = resSessions.evictIdle() + manSessions.evictIdle();
+			if (evicted > 0)
+				logger.log(Level.INFO, "Ended {0} idle session(s)", evicted);
+		}, period, period, TimeUnit.MILLISECONDS);
 		
+		long replicaPeriod = Long.getLong("agency.replicaPollMillis", 250);
+		replicaMonitor.scheduleWithFixedDelay(() -> {
+			if (!replicas.isEmpty() && replicas.refresh() > 0)
+				logger.log(Level.INFO, "Dropped replica(s) that can't be reached");
+		}, replicaPeriod, replicaPeriod, TimeUnit.MILLISECONDS);
 	}
 
 	@Override
@@ -50,57 +148,316 @@ public class Agency implements IAgency {
 	// I simply use a string for identifying clients and managers here
 	// I assume they are always unique and different client have different names
 	// I also assume the same client doesn't try to log in from multiple devices
-	// That's why these methods don't need to be synchronized
+	// The session registries are safe to use from several threads at once
 	@Override
 	public IReservationSession startReservationSession(String client) throws RemoteException {
-		if (!resSessions.containsKey(client))
-		{
-			IReservationSession ses = new ReservationSession(this, client);
-			IReservationSession remote = (IReservationSession) UnicastRemoteObject.exportObject(ses, 0);
-			resSessions.put(client, remote);
-		}
-		return resSessions.get(client);
+		return (IReservationSession) resSessions.start(client, () -> new ReservationSession(this, client));
 	}
 
 	@Override
 	public IManagerSession startManagerSession(String name) throws RemoteException {
-		if (!manSessions.containsKey(name)) {
-			IManagerSession ses = new ManagerSession(this);
-			IManagerSession remote = (IManagerSession) UnicastRemoteObject.exportObject(ses, 0);
-			manSessions.put(name, remote);
-		}
-		return manSessions.get(name);
+		if (multiplexedSessions)
+			return getSharedManagerSession();
+		return (IManagerSession) manSessions.start(name, () -> new ManagerSession(this));
+	}
+	
+	private synchronized IManagerSession getSharedManagerSession() throws RemoteException {
+		if (sharedManagerSession == null)
+			sharedManagerSession = (IManagerSession) UnicastRemoteObject.exportObject(new ManagerSession(this), 0);
+		return sharedManagerSession;
 	}
 	
 	@Override
 	public void endReservationSession(IReservationSession ses) {
-		resSessions.remove(ses);
+		resSessions.end(ses);
 	}
 
 	@Override
 	public void endManagerSession(IManagerSession ses) {
-		manSessions.remove(ses);
+		// the shared session is never ended, and isn't in the registry
+		manSessions.end(ses);
 	}
 	
 	
 	
-	synchronized ICarRentalCompany getCompany(String name) {
+	// Lock-free, like the other reads of the companies, see CompanyRegistry
+	ICarRentalCompany getCompany(String name) {
 		return companies.get(name);
 	}
 	
-	synchronized void registerCompany(ICarRentalCompany comp) throws RemoteException, NotBoundException {
+	// The same company, to call without waiting for the answer. Unlike getCompany, this
+	// is for a company the client named, so one that isn't registered is an error.
+	ICarRentalCompanyAsync getCompanyAsync(String name) throws ReservationException {
+		ICarRentalCompany comp = companies.get(name);
+		if (comp == null)
+			throw new ReservationException("<" + name + "> Reservation failed, no such company.");
+		return async(comp);
+	}
+	
+	// Every company and replica is monitored, and so can be called both ways
+	private static ICarRentalCompanyAsync async(ICarRentalCompany comp) {
+		return (ICarRentalCompanyAsync) comp;
+	}
+	
+	// Only (un)registering is synchronized, so listeners and catalogs follow the companies in order
+	synchronized void registerCompany(ICarRentalCompany stub) throws RemoteException, NotBoundException {
+		ICarRentalCompany comp = CompanyMonitor.monitor(stub, stub.getName(), monitorSettings, fanOut);
 		companies.put(comp.getName(), comp);
+		comp.addListener(getListener());
+		// only fetched after adding the listener, so no change in between goes unnoticed
+		updateCatalog(comp.getCatalog());
 	}
 	
 	synchronized void unregisterCarRentalCompany(String name) {
-		companies.remove(name);
+		ICarRentalCompany comp = companies.remove(name);
+		replicas.removeAll(name);
+		catalogs.remove(name);
+		availability.invalidate(name);
+		if (comp != null && listener != null) {
+			try {
+				comp.removeListener(listener);
+			} catch (RemoteException e) {
+				// the company is gone already, and took the listener with it
+			}
+		}
+	}
+	
+	synchronized void registerReplica(ICarRentalReplica stub) throws RemoteException {
+		String name = stub.getName();
+		replicas.add(name, CompanyMonitor.monitor(stub, name + " replica", monitorSettings, fanOut));
+	}
+	
+	/**
+	 * Where to send a query about the given period to the company, in order of preference:
+	 * its replicas that are close enough behind it, then the company itself. Leaves out
+	 * whatever is failing, see CompanyMonitor.
+	 */
+	List<ICarRentalCompany> getReaders(String name, long start, long end) {
+		List<ICarRentalCompany> readers = new ArrayList<>(replicas.get(name, start, end));
+		ICarRentalCompany comp = getCompany(name);
+		if (comp != null && CompanyMonitor.isAvailable(comp))
+			readers.add(comp);
+		return readers;
+	}
+	
+	// A company's availability changed, whether the company said so or one of the sessions booked
+	void availabilityChanged(String company, List<AvailabilityChange> changes) {
+		replicas.changed(company, changes);
+		availability.changed(company, changes);
+	}
+	
+	private ICompanyListener getListener() throws RemoteException {
+		if (listener == null)
+			listener = (ICompanyListener) NioTransport.export(new CompanyListener(this), transport);
+		return listener;
+	}
+	
+	/**
+	 * The car types of a company, from the cache. The company is only asked when the
+	 * cache doesn't have its catalog, or only an older version than the given one.
+	 */
+	CarTypeCatalog getCatalog(String company, long minVersion) throws RemoteException {
+		CarTypeCatalog catalog = catalogs.get(company);
+		if (catalog == null || catalog.getVersion() < minVersion) {
+			catalog = getCompany(company).getCatalog();
+			updateCatalog(catalog);
+		}
+		return catalog;
+	}
+	
+	AvailabilityCache getAvailabilityCache() {
+		return availability;
+	}
+	
+	// Keeps the newest catalog, since changes can arrive out of order
+	void updateCatalog(CarTypeCatalog catalog) {
+		if (getCompany(catalog.getCompany()) == null)
+			return;
+		catalogs.merge(catalog.getCompany(), catalog,
+				(cached, changed) -> changed.getVersion() > cached.getVersion() ? changed : cached);
+	}
+	
+	Collection<String> getCarRentalCompanyNames() {
+		return companies.getNames();
+	}
+	
+	Collection<ICarRentalCompany> getCarRentalCompanies() {
+		return companies.getCompanies();
+	}
+	
+	long getCallTimeoutMillis() {
+		return callTimeoutMillis;
+	}
+	
+	/**
+	 * Something to ask a single company, without waiting for the answer, see callAll.
+	 */
+	interface CompanyCall<T> {
+		CompletableFuture<T> call(ICarRentalCompanyAsync comp);
+	}
+	
+	/**
+	 * Asks all companies at once rather than one after the other, and waits at most
+	 * the call timeout for their answers. Only the calling thread waits: the calls are
+	 * all on their way at once without a thread each, unless they go over RMI.
+	 * Companies that haven't answered by then are left out of the result and listed
+	 * as timed out, so one slow company doesn't hold up the others. Companies that
+	 * answered with a failure are listed as failed, and those that failed too often
+	 * lately aren't even asked and are listed as skipped, see CompanyMonitor.
+	 * 
+	 * @return the answer of each company that answered in time, by company name
+	 * @throws RemoteException when interrupted while waiting
+	 */
+	<T> PartialResult<Map<String, T>> callAll(CompanyCall<T> call) throws RemoteException {
+		return callAll(companies.getAll(), call);
+	}
+	
+	// The same, but only for the companies with the given names
+	<T> PartialResult<Map<String, T>> callAll(Collection<String> names, CompanyCall<T> call) throws RemoteException {
+		Map<String, ICarRentalCompany> comps = new LinkedHashMap<>();
+		for (String name : names) {
+			ICarRentalCompany comp = companies.get(name);
+			if (comp != null)
+				comps.put(name, comp);
+		}
+		return callAll(comps, call);
+	}
+	
+	private <T> PartialResult<Map<String, T>> callAll(Map<String, ICarRentalCompany> comps, CompanyCall<T> call) throws RemoteException {
+		Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+		Set<String> skipped = new HashSet<>();
+		for (Map.Entry<String, ICarRentalCompany> entry : comps.entrySet()) {
+			ICarRentalCompany comp = entry.getValue();
+			if (CompanyMonitor.isAvailable(comp))
+				futures.put(entry.getKey(), call.call(async(comp)));
+			else
+				skipped.add(entry.getKey());
+		}
+		return awaitAll(futures, skipped);
+	}
+	
+	/**
+	 * The same, for a query about the given period, but asking the replicas of the
+	 * companies where they have any, see getReaders. A company that doesn't answer
+	 * quickly enough is asked a second time elsewhere, see hedge.
+	 */
+	<T> PartialResult<Map<String, T>> readAll(Collection<String> names, long start, long end, CompanyCall<T> call) throws RemoteException {
+		Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+		Set<String> skipped = new HashSet<>();
+		for (String name : names) {
+			List<ICarRentalCompany> readers = getReaders(name, start, end);
+			if (readers.isEmpty()) {
+				if (companies.get(name) != null)
+					skipped.add(name);
+				continue;
+			}
+			ICarRentalCompany comp = readers.get(0);
+			if (readers.size() == 1 || hedgePercentile <= 0)
+				futures.put(name, call.call(async(comp)));
+			else
+				futures.put(name, hedge(comp, readers.get(1), call));
+		}
+		return awaitAll(futures, skipped);
 	}
 	
-	synchronized Collection<String> getCarRentalCompanyNames() {
-		return companies.keySet();
+	/**
+	 * Asks the first, and the second as well if the first hasn't answered after the
+	 * hedge percentile of its latencies, or failed. The first answer wins, so a
+	 * server that pauses only delays the answer by about that much. Then, or when the
+	 * answer is given up on, the other call is cancelled, so it doesn't hold on to a
+	 * fan-out thread.
+	 */
+	private <T> CompletableFuture<T> hedge(ICarRentalCompany first, ICarRentalCompany second, CompanyCall<T> call) {
+		CompletableFuture<T> answer = new CompletableFuture<>();
+		AtomicInteger asking = new AtomicInteger(1);
+		AtomicBoolean hedged = new AtomicBoolean();
+		Queue<CompletableFuture<T>> calls = new ConcurrentLinkedQueue<>();
+		Runnable askSecond = () -> {
+			if (!answer.isDone() && hedged.compareAndSet(false, true)) {
+				asking.incrementAndGet();
+				// after a failure this runs on whatever thread completed the first call, which
+				// for NioTransport is the one that delivers all answers, so it mustn't ask from there
+				hedgeTimer.execute(() -> ask(second, call, answer, asking, () -> {}, calls));
+			}
+		};
+		answer.whenComplete((value, failure) -> {
+			// given up on, see awaitAll, which counts against the server that was asked first
+			if (answer.isCancelled())
+				CompanyMonitor.timedOut(calls.peek());
+			for (CompletableFuture<T> asked : calls)
+				asked.cancel(true);
+		});
+		ask(first, call, answer, asking, askSecond, calls);
+		
+		CompanyMonitor monitor = CompanyMonitor.of(first);
+		long delay = monitor == null ? -1 : monitor.getLatencyMillis(hedgePercentile);
+		hedgeTimer.schedule(askSecond, delay < 0 ? hedgeDelayMillis : Math.max(1, delay), TimeUnit.MILLISECONDS);
+		return answer;
+	}
+	
+	// Answers with the first success, or with the last failure once nobody else is being asked
+	private static <T> void ask(ICarRentalCompany comp, CompanyCall<T> call, CompletableFuture<T> answer,
+			AtomicInteger asking, Runnable onFailure, Queue<CompletableFuture<T>> calls) {
+		CompletableFuture<T> asked = call.call(async(comp));
+		calls.add(asked);
+		// answered already, so the calls were cancelled before this one was added
+		if (answer.isDone())
+			asked.cancel(true);
+		asked.whenComplete((value, failure) -> {
+			if (failure == null) {
+				answer.complete(value);
+			} else {
+				onFailure.run();
+				if (asking.decrementAndGet() == 0)
+					answer.completeExceptionally(failure);
+			}
+		});
+	}
+	
+	// Waits for the answers to the calls, the skipped companies weren't called
+	private <T> PartialResult<Map<String, T>> awaitAll(Map<String, CompletableFuture<T>> futures,
+			Set<String> skipped) throws RemoteException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(callTimeoutMillis);
+		Map<String, T> answers = new LinkedHashMap<>();
+		Set<String> timedOut = new HashSet<>();
+		Set<String> failed = new HashSet<>();
+		RuntimeException bug = null;
+		for (Map.Entry<String, CompletableFuture<T>> entry : futures.entrySet()) {
+			try {
+				answers.put(entry.getKey(), entry.getValue().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+			} catch (TimeoutException | CancellationException e) {
+				CompanyMonitor.timedOut(entry.getValue());
+				entry.getValue().cancel(true);
+				timedOut.add(entry.getKey());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Error)
+					throw (Error) cause;
+				if (cause instanceof RuntimeException) {
+					if (bug == null)
+						bug = (RuntimeException) cause;
+				} else {
+					failed.add(entry.getKey());
+					logger.log(Level.WARNING, "<" + entry.getKey() + "> Failed to answer", cause);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted while waiting for the companies", e);
+			}
+		}
+		// a bug rather than a company that's down, so not hidden in the result
+		if (bug != null)
+			throw bug;
+		return new PartialResult<>(answers, timedOut, failed, skipped);
 	}
 	
-	synchronized Collection<ICarRentalCompany> getCarRentalCompanies() {
-		return companies.values();
+	/**
+	 * The value of a result over all companies, for the calls that can't say which
+	 * companies are missing from it: rather than leave them out silently, they fail.
+	 */
+	static <T> T requireComplete(PartialResult<T> result) throws RemoteException {
+		if (!result.isComplete())
+			throw new RemoteException("Not every company answered (" + result.describeMissing() + ")");
+		return result.getValue();
 	}
 }
@@ -0,0 +1,158 @@
+package agency;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import shared.AvailabilityChange;
+import shared.CarType;
+import shared.CarTypeCatalog;
+import shared.CarTypeSelection;
+import shared.Quote;
+
+/**
+ * Remembers which car types of which company were available for which periods, so
+ * browsing for available car types doesn't have to ask the companies every time.
+ * 
+ * The companies tell the agency whenever cars are booked or released, and the answers
+ * for periods overlapping those changes are dropped. Since those changes arrive a
+ * little later than they happen, an answer is never used once it's older than the
+ * staleness bound either.
+ */
+class AvailabilityCache {
+	
+	private long maxStalenessNanos;
+	private int maxPeriodsPerType;
+	// company -> car type -> period -> answer
+	private ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<Period, Answer>>> answers = new ConcurrentHashMap<>();
+	// Goes up with every change of a company, see getEpoch
+	private ConcurrentMap<String, AtomicLong> epochs = new ConcurrentHashMap<>();
+	
+	AvailabilityCache(long maxStalenessMillis, int maxPeriodsPerType) {
+		this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+		this.maxPeriodsPerType = maxPeriodsPerType;
+	}
+	
+	/**
+	 * The car types of the catalog that are available for the period, or null if
+	 * that's not known for all of them.
+	 */
+	List<CarType> get(CarTypeCatalog catalog, long start, long end) {
+		if (maxStalenessNanos <= 0)
+			return null;
+		Map<String, ConcurrentMap<Period, Answer>> types = answers.get(catalog.getCompany());
+		if (types == null)
+			return null;
+		
+		Period period = new Period(start, end);
+		long now = System.nanoTime();
+		List<CarType> available = new ArrayList<>();
+		for (CarType type : catalog.getCarTypes()) {
+			Map<Period, Answer> periods = types.get(type.getName());
+			Answer answer = periods == null ? null : periods.get(period);
+			if (answer == null || now - answer.time > maxStalenessNanos)
+				return null;
+			if (answer.available)
+				available.add(type);
+		}
+		return available;
+	}
+	
+	/**
+	 * To be read before asking a company, and handed to put with its answer. When the
+	 * company changed in the meantime, the answer may already be outdated.
+	 */
+	long getEpoch(String company) {
+		return epoch(company).get();
+	}
+	
+	void put(CarTypeCatalog catalog, CarTypeSelection selection, long start, long end, long epoch) {
+		if (maxStalenessNanos <= 0)
+			return;
+		ConcurrentMap<String, ConcurrentMap<Period, Answer>> types =
+				answers.computeIfAbsent(catalog.getCompany(), company -> new ConcurrentHashMap<>());
+		Period period = new Period(start, end);
+		long now = System.nanoTime();
+		List<CarType> available = catalog.resolve(selection);
+		for (CarType type : catalog.getCarTypes()) {
+			ConcurrentMap<Period, Answer> periods = types.computeIfAbsent(type.getName(), name -> new ConcurrentHashMap<>());
+			// periods are whatever clients ask for, so don't let them pile up
+			if (periods.size() >= maxPeriodsPerType)
+				periods.clear();
+			periods.put(period, new Answer(available.contains(type), now));
+		}
+		if (getEpoch(catalog.getCompany()) != epoch)
+			invalidate(catalog.getCompany());
+	}
+	
+	void changed(String company, List<AvailabilityChange> changes) {
+		epoch(company).incrementAndGet();
+		Map<String, ConcurrentMap<Period, Answer>> types = answers.get(company);
+		if (types == null)
+			return;
+		for (AvailabilityChange change : changes) {
+			Map<Period, Answer> periods = types.get(change.getCarType());
+			if (periods != null)
+				periods.keySet().removeIf(period -> change.overlaps(period.start, period.end));
+		}
+	}
+	
+	/**
+	 * The changes of bookings and cancellations made through this agency, which shouldn't
+	 * have to wait for the company's own notification to show up.
+	 */
+	static List<AvailabilityChange> changesOf(Collection<? extends Quote> periods) {
+		List<AvailabilityChange> changes = new ArrayList<>(periods.size());
+		for (Quote quote : periods)
+			changes.add(new AvailabilityChange(quote.getCarType(), quote.getStartTime(), quote.getEndTime()));
+		return changes;
+	}
+	
+	void invalidate(String company) {
+		epoch(company).incrementAndGet();
+		answers.remove(company);
+	}
+	
+	private AtomicLong epoch(String company) {
+		return epochs.computeIfAbsent(company, name -> new AtomicLong());
+	}
+	
+	private static class Period {
+		final long start;
+		final long end;
+		
+		Period(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Long.hashCode(start) * 31 + Long.hashCode(end);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Period))
+				return false;
+			Period other = (Period) obj;
+			return start == other.start && end == other.end;
+		}
+	}
+	
+	private static class Answer {
+		final boolean available;
+		// System.nanoTime when the company gave it
+		final long time;
+		
+		Answer(boolean available, long time) {
+			this.available = available;
+			this.time = time;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package agency;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+import remote.ICompanyListener;
+import shared.AvailabilityChange;
+import shared.CarTypeCatalog;
+
+/**
+ * Receives the changes the registered companies push to the agency.
+ */
+class CompanyListener implements ICompanyListener {
+	
+	Agency agency;
+	
+	CompanyListener(Agency agency) {
+		this.agency = agency;
+	}
+
+	@Override
+	public void catalogChanged(CarTypeCatalog catalog) throws RemoteException {
+		agency.updateCatalog(catalog);
+	}
+
+	@Override
+	public void availabilityChanged(String company, List<AvailabilityChange> changes) throws RemoteException {
+		agency.availabilityChanged(company, changes);
+	}
+}
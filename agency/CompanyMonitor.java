@@ -0,0 +1,272 @@
+package agency;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import remote.ICarRentalCompany;
+import remote.ICarRentalCompanyAsync;
+import transport.Async;
+
+/**
+ * Keeps an eye on the server of a company or replica for the agency. The agency only
+ * calls the server through the proxy this hands out, see monitor, which times every
+ * call, whether it waits for the answer or not, and acts as a circuit breaker.
+ *
+ * The latencies of the latest calls tell how long an answer usually takes, which the
+ * agency uses to decide when to stop waiting for it and ask elsewhere as well, see
+ * getLatencyMillis.
+ *
+ * Calls that fail to reach the server, or that take longer than the slow call limit,
+ * count as failures. After a number of failures in a row the breaker opens: calls fail
+ * right away, without waiting for a server that's probably not answering anyway. Once
+ * the open time is over a single trial call is let through, which closes the breaker
+ * again if it succeeds. Calls the server answers with an exception of its own, e.g. a
+ * ReservationException, show that it's healthy.
+ */
+class CompanyMonitor implements InvocationHandler {
+
+	/**
+	 * The settings of the monitors of one agency.
+	 */
+	static class Settings {
+		final int failuresToOpen;
+		final long openMillis;
+		final long slowCallMillis;
+
+		Settings(int failuresToOpen, long openMillis, long slowCallMillis) {
+			this.failuresToOpen = failuresToOpen;
+			this.openMillis = openMillis;
+			this.slowCallMillis = slowCallMillis;
+		}
+	}
+
+	private static final int SAMPLES = 256;
+
+	private ICarRentalCompany target;
+	private ICarRentalCompanyAsync asyncTarget;
+	private String name;
+	private Settings settings;
+	// The latencies of the latest successful calls in nanos, as a ring
+	private long[] latencies = new long[SAMPLES];
+	private int calls;
+	private int failures;
+	// System.nanoTime until which the breaker is open
+	private long openUntil;
+	private boolean trialRunning;
+
+	private CompanyMonitor(ICarRentalCompany target, String name, Settings settings, Executor blockingCalls) {
+		this.target = target;
+		this.asyncTarget = Async.of(target, ICarRentalCompanyAsync.class, blockingCalls);
+		this.name = name;
+		this.settings = settings;
+	}
+
+	/**
+	 * Wraps the given stub in a monitored proxy that implements the same remote interfaces,
+	 * and ICarRentalCompanyAsync as well. Its async calls run on the given executor when
+	 * the stub can't make them without waiting, see Async.
+	 */
+	@SuppressWarnings("unchecked")
+	static <C extends ICarRentalCompany> C monitor(C target, String name, Settings settings, Executor blockingCalls) {
+		Class<?>[] interfaces = target.getClass().getInterfaces();
+		interfaces = Arrays.copyOf(interfaces, interfaces.length + 1);
+		interfaces[interfaces.length - 1] = ICarRentalCompanyAsync.class;
+		return (C) Proxy.newProxyInstance(CompanyMonitor.class.getClassLoader(),
+				interfaces, new CompanyMonitor(target, name, settings, blockingCalls));
+	}
+
+	// The monitor of a proxy made by monitor, or null for anything else
+	static CompanyMonitor of(ICarRentalCompany comp) {
+		if (comp == null || !Proxy.isProxyClass(comp.getClass()))
+			return null;
+		InvocationHandler handler = Proxy.getInvocationHandler(comp);
+		return handler instanceof CompanyMonitor ? (CompanyMonitor) handler : null;
+	}
+
+	// True for anything that isn't monitored
+	static boolean isAvailable(ICarRentalCompany comp) {
+		CompanyMonitor monitor = of(comp);
+		return monitor == null || monitor.isAvailable();
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class)
+			return invokeObjectMethod(proxy, method, args);
+		if (method.getDeclaringClass() == ICarRentalCompanyAsync.class)
+			return invokeAsync(method, args);
+
+		if (!tryAcquire())
+			throw notCalling();
+		long start = System.nanoTime();
+		try {
+			Object result = method.invoke(target, args);
+			completed(null, System.nanoTime() - start);
+			return result;
+		} catch (InvocationTargetException e) {
+			completed(e.getCause(), System.nanoTime() - start);
+			throw e.getCause();
+		}
+	}
+
+	// The answer is timed once it arrives, on whatever thread completes the call, unless
+	// the call timed out before, see timedOut
+	private CompletableFuture<Object> invokeAsync(Method method, Object[] args) throws Throwable {
+		Call answer = new Call();
+		if (!tryAcquire()) {
+			// never called, so nothing to count
+			answer.record();
+			answer.completeExceptionally(notCalling());
+			return answer;
+		}
+		long start = System.nanoTime();
+		CompletableFuture<?> call;
+		try {
+			call = (CompletableFuture<?>) method.invoke(asyncTarget, args);
+		} catch (InvocationTargetException e) {
+			completed(e.getCause(), System.nanoTime() - start);
+			throw e.getCause();
+		}
+		call.whenComplete((value, failure) -> {
+			if (answer.record()) {
+				if (failure instanceof CancellationException)
+					cancelled();
+				else
+					completed(failure, System.nanoTime() - start);
+			}
+			// as is, rather than wrapped like the futures of whenComplete itself
+			if (failure == null)
+				answer.complete(value);
+			else
+				answer.completeExceptionally(failure);
+		});
+		// whoever gives up on the answer gives up on the call, see Async
+		answer.whenComplete((value, failure) -> {
+			if (answer.isCancelled())
+				call.cancel(true);
+		});
+		return answer;
+	}
+
+	private RemoteException notCalling() {
+		return new RemoteException("<" + name + "> Not calling the company, it failed too often lately");
+	}
+
+	// Proxies are equal when they monitor the same stub
+	private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0] || (args[0] instanceof ICarRentalCompany && of((ICarRentalCompany) args[0]) != null
+					&& target.equals(of((ICarRentalCompany) args[0]).target));
+		case "hashCode":
+			return target.hashCode();
+		default:
+			return "Monitored " + target;
+		}
+	}
+
+	/*******************
+	 * CIRCUIT BREAKER *
+	 *******************/
+
+	// Whether a call would be let through now
+	synchronized boolean isAvailable() {
+		return failures < settings.failuresToOpen || (!trialRunning && System.nanoTime() - openUntil >= 0);
+	}
+
+	private synchronized boolean tryAcquire() {
+		if (failures < settings.failuresToOpen)
+			return true;
+		if (trialRunning || System.nanoTime() - openUntil < 0)
+			return false;
+		trialRunning = true;
+		return true;
+	}
+
+	// Failing to reach the server counts as a failure, what the company itself throws doesn't
+	private void completed(Throwable failure, long nanos) {
+		if (failure instanceof RemoteException)
+			failed();
+		else
+			succeeded(nanos);
+	}
+
+	private synchronized void succeeded(long nanos) {
+		if (nanos > TimeUnit.MILLISECONDS.toNanos(settings.slowCallMillis)) {
+			failed();
+			return;
+		}
+		latencies[calls++ % SAMPLES] = nanos;
+		failures = 0;
+		trialRunning = false;
+	}
+
+	private synchronized void failed() {
+		trialRunning = false;
+		if (++failures >= settings.failuresToOpen)
+			openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.openMillis);
+	}
+
+	// Given up on before it was answered, so it tells nothing about the server
+	private synchronized void cancelled() {
+		trialRunning = false;
+	}
+
+	/**
+	 * For calls the agency gave up waiting for, given by the future a monitored proxy
+	 * returned for them. They count as failures right away, rather than only once they
+	 * return, if ever, and then their answer doesn't count again. Cancelling them is up
+	 * to the caller. Anything else is ignored.
+	 */
+	static void timedOut(Future<?> answer) {
+		if (answer instanceof Call)
+			((Call) answer).timedOut();
+	}
+
+	/**
+	 * The answer to an async call, which counts once: when it arrives, or when the
+	 * agency gives up on it first.
+	 */
+	private class Call extends CompletableFuture<Object> {
+		private AtomicBoolean recorded = new AtomicBoolean();
+
+		// True only the first time
+		boolean record() {
+			return recorded.compareAndSet(false, true);
+		}
+
+		void timedOut() {
+			if (record())
+				failed();
+		}
+	}
+
+	/***********
+	 * LATENCY *
+	 ***********/
+
+	/**
+	 * The given percentile of the latencies of the latest calls.
+	 *
+	 * @return the latency in millis, or -1 if there were too few calls to tell
+	 */
+	synchronized long getLatencyMillis(double percentile) {
+		int count = Math.min(calls, SAMPLES);
+		if (count < 16)
+			return -1;
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.min(count - 1, Math.ceil(percentile / 100 * count) - 1);
+		return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+	}
+}
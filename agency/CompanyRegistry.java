@@ -0,0 +1,67 @@
+package agency;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import remote.ICarRentalCompany;
+
+/**
+ * The companies registered with the agency, by name.
+ * 
+ * Companies are looked up by every quote and confirmation, but registered maybe once a
+ * day. So rather than locking, the registry keeps an immutable snapshot that's replaced
+ * as a whole when a company is registered or unregistered. Reads only load the current
+ * snapshot, and whatever they get from it never changes underneath them.
+ */
+class CompanyRegistry {
+	
+	private static class Snapshot {
+		final Map<String, ICarRentalCompany> companies;
+		final List<String> names;
+		
+		Snapshot(Map<String, ICarRentalCompany> companies) {
+			this.companies = Collections.unmodifiableMap(companies);
+			this.names = Collections.unmodifiableList(new ArrayList<>(companies.keySet()));
+		}
+	}
+	
+	private volatile Snapshot snapshot = new Snapshot(new LinkedHashMap<String, ICarRentalCompany>());
+	
+	ICarRentalCompany get(String name) {
+		return snapshot.companies.get(name);
+	}
+	
+	// Serializable, so it can be returned to remote callers as is
+	List<String> getNames() {
+		return snapshot.names;
+	}
+	
+	Collection<ICarRentalCompany> getCompanies() {
+		return snapshot.companies.values();
+	}
+	
+	Map<String, ICarRentalCompany> getAll() {
+		return snapshot.companies;
+	}
+	
+	// Writers copy the snapshot, so they take turns
+	synchronized void put(String name, ICarRentalCompany comp) {
+		Map<String, ICarRentalCompany> companies = new LinkedHashMap<>(snapshot.companies);
+		companies.put(name, comp);
+		snapshot = new Snapshot(companies);
+	}
+	
+	// Returns the company that was removed, if any
+	synchronized ICarRentalCompany remove(String name) {
+		if (!snapshot.companies.containsKey(name))
+			return null;
+		Map<String, ICarRentalCompany> companies = new LinkedHashMap<>(snapshot.companies);
+		ICarRentalCompany removed = companies.remove(name);
+		snapshot = new Snapshot(companies);
+		return removed;
+	}
+}
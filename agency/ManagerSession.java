@@ -2,13 +2,17 @@ package agency;
 
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 
 import remote.ICarRentalCompany;
+import remote.ICarRentalReplica;
 import remote.IManagerSession;
 import shared.CarType;
+import shared.PartialResult;
 
-public class ManagerSession implements IManagerSession {
+public class ManagerSession extends Session implements IManagerSession {
 	
 	Agency agency;
 	
@@ -18,57 +22,85 @@ public class ManagerSession implements IManagerSession {
 
 	@Override
 	public String hello() throws RemoteException {
+		touch();
 		return "Hello, we can do manager-stuff together!";
 	}
 
 	@Override
 	public void registerCarRentalCompany(ICarRentalCompany comp) throws RemoteException, NotBoundException {
+		touch();
 		agency.registerCompany(comp);
 	}
 
 	@Override
 	public void unregisterCarRentalCompany(String name) throws RemoteException {
+		touch();
 		agency.unregisterCarRentalCompany(name);
 	}
 
+	@Override
+	public void registerCarRentalReplica(ICarRentalReplica replica) throws RemoteException {
+		touch();
+		agency.registerReplica(replica);
+	}
+
 	@Override
 	public Collection<String> getCarRentalCompanies() {
+		touch();
 		return agency.getCarRentalCompanyNames();
 	}
 
 	@Override
 	public Collection<CarType> getCarTypesOf(String company) throws RemoteException {
-		return agency.getCompany(company).getAllCarTypes();
+		touch();
+		return new ArrayList<>(agency.getCatalog(company, 0).getCarTypes());
 	}
 
 	@Override
 	public int getNumberOfReservationsForTypeByName(String type, String company) throws RemoteException {
+		touch();
 		return agency.getCompany(company).getNumberOfReservationsForTypeByName(type);
 	}
 
 	@Override
 	public int getNumberOfReservationsBy(String renter) throws RemoteException {
+		touch();
+		return Agency.requireComplete(getNumberOfReservationsByPartial(renter));
+	}
+
+	@Override
+	public PartialResult<Integer> getNumberOfReservationsByPartial(String renter) throws RemoteException {
+		touch();
+		PartialResult<Map<String, Integer>> perCompany = agency.callAll(comp -> comp.getNumberOfReservationsByAsync(renter));
 		int count = 0;
-		for (ICarRentalCompany comp: agency.getCarRentalCompanies()) {
-			count += comp.getNumberOfReservationsBy(renter);
+		for (int companyCount: perCompany.getValue().values()) {
+			count += companyCount;
 		}
-		return count;
+		return perCompany.withValue(count);
 	}
 
 	@Override
 	public String getMostPopularCarRentalCompany() throws RemoteException {
+		touch();
+		return Agency.requireComplete(getMostPopularCarRentalCompanyPartial());
+	}
+
+	@Override
+	public PartialResult<String> getMostPopularCarRentalCompanyPartial() throws RemoteException {
+		touch();
+		PartialResult<Map<String, Integer>> perCompany = agency.callAll(comp -> comp.getTotalNumberOfReservationsAsync());
 		int curMax = 0;
-		ICarRentalCompany curBest = null;
+		String curBest = null;
 		
-		for(ICarRentalCompany comp: agency.getCarRentalCompanies()) {
-			int curCount = comp.getTotalNumberOfReservations();
+		for(Map.Entry<String, Integer> entry: perCompany.getValue().entrySet()) {
+			int curCount = entry.getValue();
 			if (curCount > curMax) {
 				curMax = curCount;
-				curBest = comp;
+				curBest = entry.getKey();
 			}
 		}
 		
-		return curBest.getName();
+		return perCompany.withValue(curBest);
 	}
 	
 }
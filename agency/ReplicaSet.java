@@ -0,0 +1,140 @@
+package agency;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import remote.ICarRentalReplica;
+import shared.AvailabilityChange;
+
+/**
+ * The read replicas of the companies, by company name.
+ *
+ * Every replica is asked how far behind its company it is now and then, see refresh.
+ * In between, the agency assumes it only fell further behind since. Queries go to the
+ * replicas that are at most the maximum lag behind, taking turns, and to the company
+ * itself if there are none.
+ *
+ * A replica is also passed over for a query when the agency heard of a change in the
+ * queried period that the replica may not have yet. So whatever was booked through
+ * this agency, or was already announced to it by the company, shows up right away.
+ * Only bookings the agency doesn't know about yet can be missing, for at most the
+ * maximum lag.
+ */
+class ReplicaSet {
+
+	private static class Replica {
+		final ICarRentalReplica stub;
+		// When the replica had all of its company's bookings, in epoch millis of the agency
+		volatile long upToDateAt;
+
+		Replica(ICarRentalReplica stub) {
+			this.stub = stub;
+		}
+
+		// Asked before the replica answers, so this errs on the early side
+		void refresh() throws RemoteException {
+			long askedAt = System.currentTimeMillis();
+			upToDateAt = askedAt - stub.getLagMillis();
+		}
+	}
+
+	private static class HeardChange {
+		final long start;
+		final long end;
+		final long heardAt;
+
+		HeardChange(AvailabilityChange change, long heardAt) {
+			this.start = change.getStartTime();
+			this.end = change.getEndTime();
+			this.heardAt = heardAt;
+		}
+	}
+
+	private long maxLagMillis;
+	private ConcurrentMap<String, List<Replica>> replicas = new ConcurrentHashMap<>();
+	// The changes heard of within the maximum lag, of companies with replicas
+	private ConcurrentMap<String, Queue<HeardChange>> recentChanges = new ConcurrentHashMap<>();
+	private AtomicInteger turn = new AtomicInteger();
+
+	ReplicaSet(long maxLagMillis) {
+		this.maxLagMillis = maxLagMillis;
+	}
+
+	boolean isEmpty() {
+		return replicas.isEmpty();
+	}
+
+	void add(String company, ICarRentalReplica stub) throws RemoteException {
+		Replica replica = new Replica(stub);
+		replica.refresh();
+		recentChanges.computeIfAbsent(company, name -> new ConcurrentLinkedQueue<>());
+		replicas.computeIfAbsent(company, name -> new CopyOnWriteArrayList<>()).add(replica);
+	}
+
+	void removeAll(String company) {
+		replicas.remove(company);
+		recentChanges.remove(company);
+	}
+
+	void changed(String company, List<AvailabilityChange> changes) {
+		Queue<HeardChange> heard = recentChanges.get(company);
+		if (heard == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (AvailabilityChange change : changes)
+			heard.add(new HeardChange(change, now));
+		// replicas further behind than these aren't used anyway
+		for (HeardChange oldest = heard.peek(); oldest != null && oldest.heardAt < now - maxLagMillis; oldest = heard.peek())
+			heard.remove(oldest);
+	}
+
+	/**
+	 * The replicas of the company that are at most the maximum lag behind it, have all
+	 * changes in the given period the agency heard of, and aren't failing. They take
+	 * turns being first.
+	 */
+	List<ICarRentalReplica> get(String company, long start, long end) {
+		List<Replica> companyReplicas = replicas.get(company);
+		if (companyReplicas == null)
+			return Collections.emptyList();
+		Replica[] candidates = companyReplicas.toArray(new Replica[0]);
+		long oldest = System.currentTimeMillis() - maxLagMillis;
+		// the replica has to be past the last change in the period
+		for (HeardChange change : recentChanges.getOrDefault(company, new ConcurrentLinkedQueue<>())) {
+			if (!(change.end < start || change.start > end))
+				oldest = Math.max(oldest, change.heardAt + 1);
+		}
+		List<ICarRentalReplica> usable = new ArrayList<>();
+		int first = turn.getAndIncrement();
+		for (int i = 0; i < candidates.length; i++) {
+			Replica replica = candidates[Math.floorMod(first + i, candidates.length)];
+			if (replica.upToDateAt >= oldest && CompanyMonitor.isAvailable(replica.stub))
+				usable.add(replica.stub);
+		}
+		return usable;
+	}
+
+	// Asks every replica how far behind it is, and forgets those that can't be reached
+	int refresh() {
+		int dropped = 0;
+		for (List<Replica> companyReplicas : replicas.values()) {
+			for (Replica replica : companyReplicas) {
+				try {
+					replica.refresh();
+				} catch (RemoteException e) {
+					companyReplicas.remove(replica);
+					dropped++;
+				}
+			}
+		}
+		return dropped;
+	}
+}
@@ -0,0 +1,106 @@
+package agency;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import remote.IReservationService;
+import remote.ReservationSessionHandle;
+import shared.CarType;
+import shared.PartialResult;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationConstraints;
+import shared.ReservationException;
+import shared.SessionToken;
+
+/**
+ * The single exported endpoint for all reservation sessions, used when the agency runs
+ * with -Dagency.sessionMode=multiplexed. The sessions themselves aren't exported, they
+ * stay in a table here by token, and their users get a {@link ReservationSessionHandle}.
+ * Starting a session then costs a table entry instead of an export with its own
+ * distributed garbage collection lease.
+ */
+class ReservationService implements IReservationService, SessionRegistry.Exporter<ReservationSession> {
+	
+	private ConcurrentMap<SessionToken, ReservationSession> sessions = new ConcurrentHashMap<>();
+	private IReservationService stub;
+	
+	/*********
+	 * TABLE *
+	 *********/
+	
+	@Override
+	public Remote export(ReservationSession session) throws RemoteException {
+		SessionToken token = SessionToken.random();
+		sessions.put(token, session);
+		return new ReservationSessionHandle(getStub(), token);
+	}
+	
+	@Override
+	public void unexport(ReservationSession session, Remote handle) {
+		sessions.remove(((ReservationSessionHandle) handle).getToken(), session);
+	}
+	
+	private synchronized IReservationService getStub() throws RemoteException {
+		if (stub == null)
+			stub = (IReservationService) UnicastRemoteObject.exportObject(this, 0);
+		return stub;
+	}
+	
+	private ReservationSession session(SessionToken token) throws NoSuchObjectException {
+		ReservationSession session = sessions.get(token);
+		if (session == null)
+			throw new NoSuchObjectException("No reservation session " + token + ", it has ended");
+		return session;
+	}
+	
+	/************
+	 * SESSIONS *
+	 ************/
+	
+	@Override
+	public String hello(SessionToken token) throws RemoteException {
+		return session(token).hello();
+	}
+	
+	@Override
+	public Quote createQuote(SessionToken token, ReservationConstraints constraints, String company) throws RemoteException, ReservationException {
+		return session(token).createQuote(constraints, company);
+	}
+	
+	@Override
+	public Collection<Quote> getCurrentQuotes(SessionToken token) throws RemoteException {
+		return session(token).getCurrentQuotes();
+	}
+	
+	@Override
+	public Collection<Reservation> confirmQuotes(SessionToken token) throws RemoteException, ReservationException {
+		return session(token).confirmQuotes();
+	}
+	
+	@Override
+	public Collection<CarType> getAvailableCarTypes(SessionToken token, Date from, Date to) throws RemoteException {
+		return session(token).getAvailableCarTypes(from, to);
+	}
+	
+	@Override
+	public CarType getCheapestCarType(SessionToken token, Date from, Date to) throws RemoteException {
+		return session(token).getCheapestCarType(from, to);
+	}
+	
+	@Override
+	public PartialResult<Collection<CarType>> getAvailableCarTypesPartial(SessionToken token, Date from, Date to) throws RemoteException {
+		return session(token).getAvailableCarTypesPartial(from, to);
+	}
+	
+	@Override
+	public PartialResult<CarType> getCheapestCarTypePartial(SessionToken token, Date from, Date to) throws RemoteException {
+		return session(token).getCheapestCarTypePartial(from, to);
+	}
+}
@@ -3,20 +3,34 @@ package agency;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import remote.ICarRentalCompany;
+import remote.ICarRentalCompanyAsync;
 import remote.IReservationSession;
 import shared.CarType;
+import shared.CarTypeCatalog;
+import shared.CarTypeSelection;
+import shared.PartialResult;
 import shared.Quote;
 import shared.Reservation;
 import shared.ReservationConstraints;
 import shared.ReservationException;
+import shared.ReservationList;
 
-public class ReservationSession implements IReservationSession {
+public class ReservationSession extends Session implements IReservationSession {
 	
 	Agency agency;
 	String client;
@@ -29,11 +43,13 @@ public class ReservationSession implements IReservationSession {
 
 	@Override
 	public String hello() throws RemoteException {
+		touch();
 		return "Hi! I like reserving things.";
 	}
 
 	@Override
 	public Quote createQuote(ReservationConstraints constraints, String company) throws RemoteException, ReservationException {
+		touch();
 		ICarRentalCompany comp = agency.getCompany(company);
 		Quote quote = comp.createQuote(constraints, client);
 		
@@ -43,55 +59,256 @@ public class ReservationSession implements IReservationSession {
 
 	@Override
 	public Collection<Quote> getCurrentQuotes() {
+		touch();
 		return quotes;
 	}
 
+	/**
+	 * Confirms the quotes in two phases. First every company is asked, all at once,
+	 * to hold cars for its quotes. Only when all of them could, the holds are
+	 * committed, again all at once. Otherwise the holds that were made are aborted,
+	 * and a company that didn't answer in time lets its hold expire by itself.
+	 */
 	@Override
 	public Collection<Reservation> confirmQuotes() throws RemoteException, ReservationException {
-		List<Reservation> reservations = new ArrayList<>();
-		try {
-			for(Quote quote: quotes) {
-				ICarRentalCompany comp = agency.getCompany(quote.getRentalCompany());
-				Reservation res = comp.confirmQuote(quote);
-				reservations.add(res);
+		touch();
+		Map<String, List<Quote>> quotesByCompany = new LinkedHashMap<>();
+		for(Quote quote: quotes) {
+			List<Quote> companyQuotes = quotesByCompany.get(quote.getRentalCompany());
+			if (companyQuotes == null) {
+				companyQuotes = new ArrayList<>();
+				quotesByCompany.put(quote.getRentalCompany(), companyQuotes);
 			}
+			companyQuotes.add(quote);
 		}
-		catch (ReservationException e) {
-			for(Reservation res: reservations) {
-				ICarRentalCompany comp = agency.getCompany(res.getRentalCompany());
-				comp.cancelReservation(res);
+		
+		try {
+			// all found before any of them is asked to hold cars
+			Map<String, ICarRentalCompanyAsync> comps = new LinkedHashMap<>();
+			for(String company: quotesByCompany.keySet()) {
+				comps.put(company, agency.getCompanyAsync(company));
 			}
-			throw e;
+			return commitAll(comps, prepareAll(comps, quotesByCompany));
 		}
 		catch (RemoteException e) {
 			e.printStackTrace();
 			throw e;
 		}
 		finally {
+			// booked or not, the client should see the outcome when browsing right after
+			for(Map.Entry<String, List<Quote>> entry: quotesByCompany.entrySet()) {
+				agency.availabilityChanged(entry.getKey(), AvailabilityCache.changesOf(entry.getValue()));
+			}
 			quotes.clear();
 		}
+	}
+	
+	// Returns the hold of every company, or aborts them all and throws
+	private Map<String, Long> prepareAll(Map<String, ICarRentalCompanyAsync> comps,
+			Map<String, List<Quote>> quotesByCompany) throws RemoteException, ReservationException {
+		// all on their way at once, without a thread each
+		Map<String, Future<Long>> prepares = new LinkedHashMap<>();
+		for(Map.Entry<String, List<Quote>> entry: quotesByCompany.entrySet()) {
+			prepares.put(entry.getKey(), comps.get(entry.getKey()).prepareQuotesAsync(entry.getValue()));
+		}
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(agency.getCallTimeoutMillis());
+		Map<String, Long> holds = new LinkedHashMap<>();
+		Throwable failure = null;
+		for(Map.Entry<String, Future<Long>> entry: prepares.entrySet()) {
+			try {
+				holds.put(entry.getKey(), entry.getValue().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+			}
+			catch (TimeoutException e) {
+				// a hold it makes after all expires by itself
+				CompanyMonitor.timedOut(entry.getValue());
+				entry.getValue().cancel(true);
+				if (failure == null)
+					failure = new ReservationException("<" + entry.getKey() + "> Reservation failed, the company didn't answer in time.");
+			}
+			catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null)
+					failure = new RemoteException("Interrupted while preparing the reservations", e);
+			}
+		}
+		
+		if (failure != null) {
+			Map<String, Future<Void>> aborts = new LinkedHashMap<>();
+			for(Map.Entry<String, Long> entry: holds.entrySet()) {
+				aborts.put(entry.getKey(), comps.get(entry.getKey()).abortHoldAsync(entry.getValue()));
+			}
+			undoAll(aborts, failure);
+			rethrow(failure);
+		}
+		return holds;
+	}
+	
+	// Once every company holds its cars, nothing but a crash, a hung company or an expired hold can go wrong here
+	private Collection<Reservation> commitAll(Map<String, ICarRentalCompanyAsync> comps,
+			Map<String, Long> holds) throws RemoteException, ReservationException {
+		Map<String, CompletableFuture<List<Reservation>>> commits = new LinkedHashMap<>();
+		for(Map.Entry<String, Long> entry: holds.entrySet()) {
+			commits.put(entry.getKey(), comps.get(entry.getKey()).commitHoldAsync(entry.getValue()));
+		}
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(agency.getCallTimeoutMillis());
+		Map<String, List<Reservation>> confirmed = new LinkedHashMap<>();
+		Set<String> timedOut = new HashSet<>();
+		Throwable failure = null;
+		for(Map.Entry<String, CompletableFuture<List<Reservation>>> entry: commits.entrySet()) {
+			try {
+				confirmed.put(entry.getKey(), entry.getValue().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+			}
+			catch (TimeoutException e) {
+				// counted as failed, so its reservations are cancelled should they still come
+				ICarRentalCompanyAsync late = comps.get(entry.getKey());
+				entry.getValue().thenAccept(reservations -> late.cancelReservationsAsync(reservations));
+				CompanyMonitor.timedOut(entry.getValue());
+				timedOut.add(entry.getKey());
+				if (failure == null)
+					failure = new ReservationException("<" + entry.getKey() + "> Reservation failed, the company didn't answer in time.");
+			}
+			catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null)
+					failure = new RemoteException("Interrupted while committing the reservations", e);
+			}
+		}
+		
+		if (failure != null) {
+			Map<String, Future<Void>> undos = new LinkedHashMap<>();
+			for(Map.Entry<String, Long> entry: holds.entrySet()) {
+				ICarRentalCompanyAsync comp = comps.get(entry.getKey());
+				// Too late to abort, so cancel whatever did get confirmed
+				if (confirmed.containsKey(entry.getKey()))
+					undos.put(entry.getKey(), comp.cancelReservationsAsync(confirmed.get(entry.getKey())));
+				// Not waited for: a company that didn't answer may not answer this either,
+				// and then its hold expires by itself
+				else if (timedOut.contains(entry.getKey()))
+					comp.abortHoldAsync(entry.getValue());
+				else
+					undos.put(entry.getKey(), comp.abortHoldAsync(entry.getValue()));
+			}
+			undoAll(undos, failure);
+			rethrow(failure);
+		}
 		
+		List<Reservation> reservations = new ReservationList();
+		for(List<Reservation> companyReservations: confirmed.values())
+			reservations.addAll(companyReservations);
 		return reservations;
 	}
+	
+	/**
+	 * Waits at most the call timeout for the calls that undo what the companies did so
+	 * far, which are all on their way already. What goes wrong with them is added to the
+	 * failure that made them necessary, so a company that fails or hangs here neither
+	 * keeps the others from being undone nor hides that failure.
+	 */
+	private void undoAll(Map<String, Future<Void>> undos, Throwable failure) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(agency.getCallTimeoutMillis());
+		for(Map.Entry<String, Future<Void>> entry: undos.entrySet()) {
+			try {
+				entry.getValue().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			}
+			catch (TimeoutException e) {
+				CompanyMonitor.timedOut(entry.getValue());
+				failure.addSuppressed(new RemoteException("<" + entry.getKey() + "> Couldn't undo the reservation, the company didn't answer in time."));
+			}
+			catch (ExecutionException e) {
+				failure.addSuppressed(e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.addSuppressed(e);
+				return;
+			}
+		}
+	}
+	
+	private static void rethrow(Throwable failure) throws RemoteException, ReservationException {
+		if (failure instanceof ReservationException)
+			throw (ReservationException) failure;
+		if (failure instanceof RemoteException)
+			throw (RemoteException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		throw new RemoteException("Reservation failed", failure);
+	}
 
 	@Override
 	public Collection<CarType> getAvailableCarTypes(Date from, Date to) throws RemoteException {
-		Set<CarType> types = new HashSet<>();
-		for(ICarRentalCompany comp: agency.getCarRentalCompanies()) {
-			types.addAll(comp.getAvailableCarTypes(from, to));
+		touch();
+		return Agency.requireComplete(getAvailableCarTypesPartial(from, to));
+	}
+
+	@Override
+	public PartialResult<Collection<CarType>> getAvailableCarTypesPartial(Date from, Date to) throws RemoteException {
+		touch();
+		PartialResult<List<CarType>> types = getAvailableCarTypesOfEachCompany(from, to);
+		return types.<Collection<CarType>>withValue(new HashSet<>(types.getValue()));
+	}
+
+	/**
+	 * Answered from the agency's availability cache where possible. Only the companies
+	 * it has no fresh answer for are asked, and their answers are cached in turn.
+	 * 
+	 * Car types are equal when their names are, so this is a list: companies can have
+	 * a car type of the same name at a different price.
+	 */
+	private PartialResult<List<CarType>> getAvailableCarTypesOfEachCompany(Date from, Date to) throws RemoteException {
+		AvailabilityCache cache = agency.getAvailabilityCache();
+		List<CarType> types = new ArrayList<>();
+		Map<String, Long> epochs = new HashMap<>();
+		for(String company: agency.getCarRentalCompanyNames()) {
+			List<CarType> cached = cache.get(agency.getCatalog(company, 0), from.getTime(), to.getTime());
+			if (cached != null)
+				types.addAll(cached);
+			else
+				epochs.put(company, cache.getEpoch(company));
+		}
+		if (epochs.isEmpty())
+			return new PartialResult<>(types, Collections.<String>emptySet());
+		
+		// Companies answer with ids only, the car types themselves come from the agency's catalogs
+		PartialResult<Map<String, CarTypeSelection>> perCompany = agency.readAll(epochs.keySet(),
+				from.getTime(), to.getTime(), comp -> comp.getAvailableCarTypeIdsAsync(from, to));
+		for(Map.Entry<String, CarTypeSelection> entry: perCompany.getValue().entrySet()) {
+			CarTypeSelection selection = entry.getValue();
+			CarTypeCatalog catalog = agency.getCatalog(entry.getKey(), selection.getCatalogVersion());
+			types.addAll(catalog.resolve(selection));
+			cache.put(catalog, selection, from.getTime(), to.getTime(), epochs.get(entry.getKey()));
 		}
-		return types;
+		return perCompany.withValue(types);
 	}
 
 	@Override
 	public CarType getCheapestCarType(Date from, Date to) throws RemoteException {
-		Collection<CarType> types = getAvailableCarTypes(from, to);
+		touch();
+		return Agency.requireComplete(getCheapestCarTypePartial(from, to));
+	}
+
+	@Override
+	public PartialResult<CarType> getCheapestCarTypePartial(Date from, Date to) throws RemoteException {
+		touch();
+		PartialResult<List<CarType>> types = getAvailableCarTypesOfEachCompany(from, to);
 		
 		System.out.println("Checking for cheapest car...");
 		
 		double minCost = Double.MAX_VALUE;
 		CarType cheapest = null;
-		for(CarType type: types) {
+		for(CarType type: types.getValue()) {
 			System.out.println("Checking " + type.getName());
 			double cost = type.getRentalPricePerDay();
 			
@@ -101,7 +318,7 @@ public class ReservationSession implements IReservationSession {
 			}
 		}
 		
-		return cheapest;
+		return types.withValue(cheapest);
 	}
 	
 }
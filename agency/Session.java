@@ -0,0 +1,21 @@
+package agency;
+
+/**
+ * What the agency's sessions have in common: they're leased to their user, and the
+ * lease is renewed by every call. Sessions nobody called for a while are ended by
+ * their {@link SessionRegistry}.
+ */
+abstract class Session {
+	
+	// System.nanoTime of the last call
+	private volatile long lastUsed = System.nanoTime();
+	
+	// To be called at the start of every remote method
+	void touch() {
+		lastUsed = System.nanoTime();
+	}
+	
+	long getIdleNanos() {
+		return System.nanoTime() - lastUsed;
+	}
+}
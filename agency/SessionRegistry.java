@@ -0,0 +1,154 @@
+package agency;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import transport.NioTransport;
+
+/**
+ * The sessions of one kind, by the name of their user.
+ * 
+ * A session stays exported while it's being used. Once nobody called it for the idle
+ * timeout, it's evicted: forgotten and unexported, so neither the agency's heap nor
+ * the number of exported objects grows with every visitor. Calling an evicted session
+ * fails with a NoSuchObjectException (wrapped in a ServerException when multiplexed, see
+ * ReservationService), and the user can simply start a new one.
+ */
+class SessionRegistry<S extends Session & Remote> {
+	
+	interface Factory<S> {
+		S create();
+	}
+	
+	/**
+	 * How sessions are made reachable for their users, and unreachable again.
+	 */
+	interface Exporter<S> {
+		// Returns what the user gets to call the session with
+		Remote export(S session) throws RemoteException;
+		void unexport(S session, Remote stub);
+	}
+	
+	// Every session is an exported object of its own, over RMI or NioTransport
+	private static class ExportEach<S extends Remote> implements Exporter<S> {
+		private String transport;
+		
+		ExportEach(String transport) {
+			this.transport = transport;
+		}
+		
+		@Override
+		public Remote export(S session) throws RemoteException {
+			return NioTransport.export(session, transport);
+		}
+		
+		@Override
+		public void unexport(S session, Remote stub) {
+			if (NioTransport.unexportObject(session))
+				return;
+			try {
+				// forced, so it doesn't wait for calls that are still running
+				UnicastRemoteObject.unexportObject(session, true);
+			} catch (NoSuchObjectException e) {
+				// not exported anymore
+			}
+		}
+	}
+	
+	private static class Entry<S> {
+		final S session;
+		final Remote stub;
+		
+		Entry(S session, Remote stub) {
+			this.session = session;
+			this.stub = stub;
+		}
+	}
+	
+	private long idleTimeoutNanos;
+	private Exporter<S> exporter;
+	private ConcurrentMap<String, Entry<S>> sessions = new ConcurrentHashMap<>();
+	// Sessions are ended with their stub
+	private ConcurrentMap<Remote, String> namesByStub = new ConcurrentHashMap<>();
+	
+	// Exports every session over the given transport, see NioTransport.export
+	SessionRegistry(long idleTimeoutMillis, String transport) {
+		this(idleTimeoutMillis, new ExportEach<S>(transport));
+	}
+	
+	SessionRegistry(long idleTimeoutMillis, Exporter<S> exporter) {
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.exporter = exporter;
+	}
+	
+	/**
+	 * Returns the stub of the session of the given user, exporting a new session if
+	 * there is none. Either way its lease is renewed.
+	 */
+	Remote start(String name, Factory<S> factory) throws RemoteException {
+		while (true) {
+			// renewed atomically with the lookup, so eviction can't slip in between
+			Entry<S> entry = sessions.computeIfPresent(name, (n, existing) -> {
+				existing.session.touch();
+				return existing;
+			});
+			if (entry != null)
+				return entry.stub;
+			
+			S session = factory.create();
+			Entry<S> created = new Entry<>(session, exporter.export(session));
+			if (sessions.putIfAbsent(name, created) == null) {
+				namesByStub.put(created.stub, name);
+				return created.stub;
+			}
+			// someone else started one for this user at the same time
+			unexport(created);
+		}
+	}
+	
+	void end(Remote stub) {
+		String name = namesByStub.remove(stub);
+		if (name == null)
+			return;
+		Entry<S> entry = sessions.get(name);
+		if (entry != null && entry.stub.equals(stub) && sessions.remove(name, entry))
+			unexport(entry);
+	}
+	
+	/**
+	 * Evicts the sessions that were idle for longer than the idle timeout.
+	 * 
+	 * @return the number of evicted sessions
+	 */
+	int evictIdle() {
+		List<Entry<S>> evicted = new ArrayList<>();
+		for (String name : sessions.keySet()) {
+			sessions.computeIfPresent(name, (n, entry) -> {
+				if (entry.session.getIdleNanos() < idleTimeoutNanos)
+					return entry;
+				evicted.add(entry);
+				return null;
+			});
+		}
+		for (Entry<S> entry : evicted) {
+			namesByStub.remove(entry.stub);
+			unexport(entry);
+		}
+		return evicted.size();
+	}
+	
+	int size() {
+		return sessions.size();
+	}
+	
+	private void unexport(Entry<S> entry) {
+		exporter.unexport(entry.session, entry.stub);
+	}
+}
@@ -0,0 +1,129 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import rental.Car;
+import rental.CarRentalCompany;
+import shared.CarType;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationException;
+
+/**
+ * Books a single car type of a local company from many threads at once, in both the
+ * locked and the optimistic booking mode, see CarRentalCompany#setOptimisticBooking.
+ * Some of the reservations are cancelled again along the way.
+ *
+ * Afterwards no car may have overlapping reservations, the cars must hold exactly the
+ * reservations that were made and not cancelled, and no booking may have gone over the
+ * cars more often than CarRentalCompany.MAX_CLAIM_PASSES. Exits with 1 if any fails.
+ *
+ * Usage: java client.BookingStress [threads] [bookings per thread] [cars]
+ */
+public class BookingStress {
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	/********
+	 * MAIN *
+	 ********/
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int bookings = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int nbOfCars = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		// every failed booking is logged, which would drown out the rest
+		Logger.getLogger(CarRentalCompany.class.getName()).setLevel(Level.WARNING);
+
+		boolean ok = true;
+		for (boolean optimistic : new boolean[] { false, true })
+			ok &= run(optimistic, threads, bookings, nbOfCars);
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean run(boolean optimistic, int threads, int bookings, int nbOfCars) throws Exception {
+		CarType type = new CarType("Stress", 4, 100, 50, false);
+		List<Car> cars = new ArrayList<Car>();
+		for (int i = 0; i < nbOfCars; i++)
+			cars.add(new Car(i, type));
+		CarRentalCompany company = new CarRentalCompany("Stress", cars);
+		company.setOptimisticBooking(optimistic);
+
+		List<Reservation> live = Collections.synchronizedList(new ArrayList<Reservation>());
+		AtomicInteger booked = new AtomicInteger();
+		AtomicInteger refused = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> done = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			String renter = "renter " + t;
+			Random random = new Random(t);
+			done.add(pool.submit(() -> {
+				for (int i = 0; i < bookings; i++) {
+					// short periods in a small window, so bookings keep colliding
+					long from = random.nextInt(200) * DAY;
+					long to = from + (1 + random.nextInt(3)) * DAY;
+					Quote quote = new Quote(renter, from, to, "Stress", "Stress", 1);
+					try {
+						Reservation res = company.confirmQuote(quote);
+						booked.incrementAndGet();
+						if (random.nextInt(4) == 0)
+							company.cancelReservation(res);
+						else
+							live.add(res);
+					} catch (ReservationException e) {
+						refused.incrementAndGet();
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : done)
+			future.get();
+		pool.shutdown();
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		List<String> problems = check(cars, live.size());
+		int passes = company.getMostClaimPasses();
+		if (passes > CarRentalCompany.MAX_CLAIM_PASSES)
+			problems.add("a booking took " + passes + " passes over the cars, at most "
+					+ CarRentalCompany.MAX_CLAIM_PASSES + " are allowed");
+		System.out.println((optimistic ? "optimistic" : "locked") + ": " + booked + " booked, "
+				+ refused + " refused, " + live.size() + " kept, in " + millis + " ms, at most "
+				+ passes + " pass(es) per booking");
+		for (String problem : problems)
+			System.out.println("  FAILED: " + problem);
+		if (problems.isEmpty())
+			System.out.println("  no double bookings, retries bounded");
+		return problems.isEmpty();
+	}
+
+	// Reservations of a car are ordered by start, so any overlap is between neighbours
+	private static List<String> check(List<Car> cars, int kept) {
+		List<String> problems = new ArrayList<String>();
+		int onCars = 0;
+		for (Car car : cars) {
+			List<Reservation> reservations = car.getReservations();
+			onCars += reservations.size();
+			for (int i = 1; i < reservations.size(); i++) {
+				Reservation before = reservations.get(i - 1);
+				Reservation after = reservations.get(i);
+				if (before.getEndTime() >= after.getStartTime())
+					problems.add("car " + car.getId() + " is booked twice: " + before + " and " + after);
+			}
+		}
+		// two reservations starting at the same time on one car would hide one another
+		if (onCars != kept)
+			problems.add(kept + " reservations kept, but the cars have " + onCars);
+		return problems;
+	}
+}
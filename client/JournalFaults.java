@@ -0,0 +1,152 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import rental.Car;
+import rental.CarRentalCompany;
+import rental.ReservationJournal;
+import shared.CarType;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationException;
+
+/**
+ * Makes writes to the journal of a local company fail halfway, and checks that the
+ * company keeps booking and cancelling afterwards: a write that fails once is written
+ * again, one that fails twice fails only the bookings or cancellations it was for.
+ *
+ * After a restart the company must have recovered exactly the reservations that were
+ * made and not cancelled. Exits with 1 if anything fails.
+ *
+ * Usage: java client.JournalFaults [snapshot interval]
+ */
+public class JournalFaults {
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	// Kept, so its level isn't lost when it's garbage collected
+	private static final Logger RENTAL_LOGGER = Logger.getLogger("rental");
+
+	/**
+	 * A journal whose next few writes only write half of their batch and then fail.
+	 */
+	private static class FaultyJournal extends ReservationJournal {
+		private int failures;
+
+		FaultyJournal(File dir, int snapshotInterval) throws IOException {
+			super(dir, "Faults", snapshotInterval);
+		}
+
+		synchronized void failNextWrites(int failures) {
+			this.failures = failures;
+		}
+
+		@Override
+		protected void write(FileChannel channel, ByteBuffer batch) throws IOException {
+			synchronized (this) {
+				if (failures > 0) {
+					failures--;
+					ByteBuffer half = batch.duplicate();
+					half.limit(half.position() + half.remaining() / 2);
+					channel.write(half);
+					throw new IOException("Injected fault");
+				}
+			}
+			super.write(channel, batch);
+		}
+	}
+
+	/********
+	 * MAIN *
+	 ********/
+
+	public static void main(String[] args) throws Exception {
+		int snapshotInterval = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		// the injected faults are logged, which would drown out the rest
+		RENTAL_LOGGER.setLevel(Level.OFF);
+
+		File dir = Files.createTempDirectory("journal-faults").toFile();
+		CarType type = new CarType("Faults", 4, 100, 50, false);
+		CarRentalCompany company = newCompany(type);
+		FaultyJournal journal = new FaultyJournal(dir, snapshotInterval);
+		company.useJournal(journal);
+
+		List<String> problems = new ArrayList<String>();
+		Set<Long> kept = new HashSet<Long>();
+		int day = 0;
+
+		Reservation cancelled = company.confirmQuote(quote(day++));
+		kept.add(company.confirmQuote(quote(day++)).getId());
+
+		// written again
+		journal.failNextWrites(1);
+		kept.add(company.confirmQuote(quote(day++)).getId());
+
+		// fails, but only this booking
+		journal.failNextWrites(2);
+		Quote refused = quote(day++);
+		try {
+			company.confirmQuote(refused);
+			problems.add("booking succeeded although its journal write failed twice");
+		} catch (ReservationException e) {
+			// the car is free again, so booking it once more works
+			kept.add(company.confirmQuote(refused).getId());
+		}
+
+		journal.failNextWrites(2);
+		try {
+			company.cancelReservation(cancelled);
+			problems.add("cancellation succeeded although its journal write failed twice");
+		} catch (RemoteException e) {
+			company.cancelReservation(cancelled);
+		}
+
+		for (int i = 0; i < 2 * snapshotInterval && i < 1000; i++)
+			kept.add(company.confirmQuote(quote(day++)).getId());
+		if (journal.isBroken())
+			problems.add("the journal broke");
+		journal.close();
+
+		CarRentalCompany recovered = newCompany(type);
+		ReservationJournal reopened = new ReservationJournal(dir, "Faults", snapshotInterval);
+		recovered.useJournal(reopened);
+		Set<Long> ids = new HashSet<Long>();
+		for (Reservation res : recovered.getReservationsByRenter("faults"))
+			ids.add(res.getId());
+		reopened.close();
+		if (!ids.equals(kept))
+			problems.add("recovered " + ids.size() + " reservations, but " + kept.size() + " were kept"
+					+ (ids.containsAll(kept) ? ", and some that failed" : ", and not all of them"));
+
+		System.out.println(kept.size() + " reservations kept, " + ids.size() + " recovered");
+		for (String problem : problems)
+			System.out.println("  FAILED: " + problem);
+		if (problems.isEmpty())
+			System.out.println("  bookings and cancellations carry on after failed writes");
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+		System.exit(problems.isEmpty() ? 0 : 1);
+	}
+
+	private static CarRentalCompany newCompany(CarType type) {
+		List<Car> cars = new ArrayList<Car>();
+		cars.add(new Car(0, type));
+		return new CarRentalCompany("Faults", cars);
+	}
+
+	// A day of its own on the single car
+	private static Quote quote(int day) {
+		return new Quote("faults", day * DAY, day * DAY + DAY / 2, "Faults", "Faults", 1);
+	}
+}
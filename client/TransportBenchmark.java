@@ -0,0 +1,118 @@
+package client;
+
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.ICarRentalCompany;
+import rental.CarRentalCompany;
+import rental.RentalServer;
+import shared.ReservationConstraints;
+import transport.NioTransport;
+
+/**
+ * Calls one company over loopback RMI and over NioTransport, with the same mix of calls,
+ * and prints the latency of each call from a single caller and the throughput of
+ * availability queries from more and more callers at once.
+ *
+ * The company is exported both ways in this JVM, so both stubs go through a socket,
+ * but the caller and the company share the machine's CPUs.
+ *
+ * Usage: java client.TransportBenchmark [fleet.csv] [calls per latency measurement]
+ */
+public class TransportBenchmark {
+
+	private static final int[] CALLERS = { 1, 8, 64, 256 };
+
+	/********
+	 * MAIN *
+	 ********/
+
+	public static void main(String[] args) throws Exception {
+		String fleet = args.length > 0 ? args[0] : "hertz.csv";
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		CarRentalCompany company = new CarRentalCompany("Hertz", RentalServer.loadData(fleet));
+		Map<String, ICarRentalCompany> stubs = new LinkedHashMap<String, ICarRentalCompany>();
+		stubs.put("rmi", (ICarRentalCompany) UnicastRemoteObject.exportObject(company, 0));
+		stubs.put("nio", (ICarRentalCompany) NioTransport.exportObject(company));
+
+		Date from = AbstractTesting.DATE_FORMAT.parse("1/11/2012");
+		Date to = AbstractTesting.DATE_FORMAT.parse("5/11/2012");
+		ReservationConstraints constraints = new ReservationConstraints(from, to, "Compact");
+		Map<String, Callable<Object>> mix = new LinkedHashMap<String, Callable<Object>>();
+		for (Map.Entry<String, ICarRentalCompany> stub : stubs.entrySet()) {
+			ICarRentalCompany comp = stub.getValue();
+			mix.put(stub.getKey() + " getAvailableCarTypeIds", () -> comp.getAvailableCarTypeIds(from, to));
+			mix.put(stub.getKey() + " createQuote", () -> comp.createQuote(constraints, "bench"));
+			mix.put(stub.getKey() + " getAllCarTypes", () -> comp.getAllCarTypes());
+			mix.put(stub.getKey() + " getTotalNumberOfReservations", () -> comp.getTotalNumberOfReservations());
+		}
+
+		// warm up connections and the JIT
+		for (Callable<Object> call : mix.values()) {
+			for (int i = 0; i < calls / 4; i++)
+				call.call();
+		}
+
+		System.out.println("Latency of a single caller, in microseconds: mean p50 p99");
+		for (Map.Entry<String, Callable<Object>> call : mix.entrySet()) {
+			long[] nanos = new long[calls];
+			for (int i = 0; i < calls; i++) {
+				long start = System.nanoTime();
+				call.getValue().call();
+				nanos[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(nanos);
+			long sum = 0;
+			for (long n : nanos)
+				sum += n;
+			System.out.printf("  %-36s %8.1f %8.1f %8.1f%n", call.getKey(),
+					sum / calls / 1e3, nanos[calls / 2] / 1e3, nanos[calls * 99 / 100] / 1e3);
+		}
+
+		System.out.println("Throughput of getAvailableCarTypeIds, in calls per second");
+		for (int callers : CALLERS) {
+			for (String transport : stubs.keySet())
+				System.out.printf("  %-4s %4d callers: %9.0f%n", transport, callers,
+						throughput(mix.get(transport + " getAvailableCarTypeIds"), callers));
+		}
+
+		// the servers of both transports would keep the JVM running
+		System.exit(0);
+	}
+
+	private static double throughput(Callable<Object> call, int callers) throws InterruptedException {
+		AtomicLong count = new AtomicLong();
+		AtomicBoolean stop = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(callers);
+		for (int i = 0; i < callers; i++) {
+			pool.execute(() -> {
+				try {
+					while (!stop.get()) {
+						call.call();
+						count.incrementAndGet();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+		}
+		Thread.sleep(500);
+		count.set(0);
+		Thread.sleep(2000);
+		long counted = count.get();
+		stop.set(true);
+		pool.shutdown();
+		pool.awaitTermination(10, TimeUnit.SECONDS);
+		return counted / 2.0;
+	}
+}
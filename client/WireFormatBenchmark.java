@@ -0,0 +1,203 @@
+package client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import shared.CarType;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationList;
+
+/**
+ * Compares the wire format of quotes, car types and lists of reservations with default
+ * serialization of the same fields, the way RMI sends them: bytes per call, and the
+ * time to write and read them.
+ *
+ * The default ones are stand-ins below with the fields the classes had before they
+ * wrote themselves, so their class descriptions carry a longer class name than the
+ * real ones would.
+ *
+ * Usage: java client.WireFormatBenchmark [iterations]
+ */
+public class WireFormatBenchmark {
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	private static final String[] TYPES = { "Compact", "Economy", "Mini", "Standard", "Premium", "Special", "MPV" };
+
+	/********
+	 * MAIN *
+	 ********/
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		long start = AbstractTesting.DATE_FORMAT.parse("5/11/2012").getTime();
+
+		Map<String, Object[]> payloads = new LinkedHashMap<String, Object[]>();
+		payloads.put("createQuote (1 quote)", new Object[] {
+				new DefaultQuote("Jos", start, start + DAY, "Hertz", TYPES[0], 44),
+				new Quote("Jos", start, start + DAY, "Hertz", TYPES[0], 44) });
+		payloads.put("getAvailableCarTypes (7 types)", new Object[] { defaultCarTypes(), carTypes() });
+		payloads.put("confirmQuotes (3 reservations)", new Object[] {
+				defaultReservations(start, 3), reservations(start, 3) });
+		payloads.put("getReservationsByRenter (20)", new Object[] {
+				defaultReservations(start, 20), reservations(start, 20) });
+
+		System.out.println("Per call: bytes, write and read time in microseconds");
+		System.out.printf("  %-32s %24s %24s%n", "", "default serialization", "wire format");
+		for (Map.Entry<String, Object[]> payload : payloads.entrySet()) {
+			System.out.printf("  %-32s", payload.getKey());
+			for (Object value : payload.getValue())
+				System.out.print(measure(value, iterations));
+			System.out.println();
+		}
+	}
+
+	private static String measure(Object value, int iterations) throws Exception {
+		byte[] bytes = write(value);
+		// warm up the JIT
+		for (int i = 0; i < iterations / 5; i++)
+			read(write(value));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			write(value);
+		long written = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			read(bytes);
+		long read = System.nanoTime();
+		return String.format(" %7d B %6.2f %6.2f", bytes.length,
+				(written - start) / 1e3 / iterations, (read - written) / 1e3 / iterations);
+	}
+
+	private static byte[] write(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object read(byte[] bytes) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		}
+	}
+
+	/************
+	 * PAYLOADS *
+	 ************/
+
+	private static Set<CarType> carTypes() {
+		Set<CarType> types = new HashSet<CarType>();
+		for (int i = 0; i < TYPES.length; i++)
+			types.add(new CarType(TYPES[i], 4, 200, 30 + 10 * i, true));
+		return types;
+	}
+
+	private static Set<DefaultCarType> defaultCarTypes() {
+		Set<DefaultCarType> types = new HashSet<DefaultCarType>();
+		for (int i = 0; i < TYPES.length; i++)
+			types.add(new DefaultCarType(TYPES[i], 4, 200, 30 + 10 * i, true));
+		return types;
+	}
+
+	// Names are copied, as they would be after coming in over the wire
+	private static List<Reservation> reservations(long start, int count) {
+		List<Reservation> reservations = new ReservationList();
+		for (int i = 0; i < count; i++) {
+			Quote quote = new Quote(new String("Jos"), start + i * DAY, start + (i + 1) * DAY,
+					new String("Hertz"), new String(TYPES[i % TYPES.length]), 100 * i);
+			reservations.add(new Reservation(quote, i, i));
+		}
+		return reservations;
+	}
+
+	private static List<DefaultReservation> defaultReservations(long start, int count) {
+		List<DefaultReservation> reservations = new ArrayList<DefaultReservation>();
+		for (int i = 0; i < count; i++)
+			reservations.add(new DefaultReservation(new String("Jos"), start + i * DAY, start + (i + 1) * DAY,
+					new String("Hertz"), new String(TYPES[i % TYPES.length]), 100 * i, i, i));
+		return reservations;
+	}
+
+	/******************************
+	 * WITH DEFAULT SERIALIZATION *
+	 ******************************/
+
+	@SuppressWarnings("unused")
+	private static class DefaultQuote implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private long startTime;
+		private long endTime;
+		private String carRenter;
+		private String rentalCompany;
+		private String carType;
+		private double rentalPrice;
+
+		DefaultQuote(String carRenter, long startTime, long endTime, String rentalCompany, String carType, double rentalPrice) {
+			this.carRenter = carRenter;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.rentalCompany = rentalCompany;
+			this.carType = carType;
+			this.rentalPrice = rentalPrice;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static class DefaultReservation extends DefaultQuote {
+		private static final long serialVersionUID = 1L;
+
+		private long id;
+		private int carId;
+
+		DefaultReservation(String carRenter, long startTime, long endTime, String rentalCompany, String carType,
+				double rentalPrice, int carId, long id) {
+			super(carRenter, startTime, endTime, rentalCompany, carType, rentalPrice);
+			this.carId = carId;
+			this.id = id;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static class DefaultCarType implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String name;
+		private int nbOfSeats;
+		private boolean smokingAllowed;
+		private double rentalPricePerDay;
+		private float trunkSpace;
+
+		DefaultCarType(String name, int nbOfSeats, float trunkSpace, double rentalPricePerDay, boolean smokingAllowed) {
+			this.name = name;
+			this.nbOfSeats = nbOfSeats;
+			this.trunkSpace = trunkSpace;
+			this.rentalPricePerDay = rentalPricePerDay;
+			this.smokingAllowed = smokingAllowed;
+		}
+
+		// like CarType, so the set has all 7
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof DefaultCarType && ((DefaultCarType) obj).name.equals(name);
+		}
+	}
+}
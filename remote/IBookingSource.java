@@ -0,0 +1,27 @@
+package remote;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+import shared.BookingChanges;
+import shared.BookingSnapshot;
+
+/**
+ * A company that replicas can follow, see {@link ICarRentalReplica}. A replica starts
+ * from a snapshot, and from then on keeps asking for the changes after the last one
+ * it applied.
+ */
+public interface IBookingSource extends Remote {
+
+	BookingSnapshot getBookingSnapshot()
+		throws RemoteException;
+
+	/**
+	 * At most max changes after the given one.
+	 * 
+	 * @return the changes, or null if the company no longer has them, e.g. because it
+	 * 		restarted or added cars, in which case the replica needs a new snapshot
+	 */
+	BookingChanges getBookingChangesSince(long logId, long sequence, int max)
+		throws RemoteException;
+}
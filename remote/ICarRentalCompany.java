@@ -8,6 +8,8 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 
 import shared.CarType;
+import shared.CarTypeCatalog;
+import shared.CarTypeSelection;
 import shared.Quote;
 import shared.Reservation;
 import shared.ReservationConstraints;
@@ -38,6 +40,29 @@ public interface ICarRentalCompany extends Remote {
 	Set<CarType> getAvailableCarTypes(Date start, Date end)
 		throws RemoteException;
 
+	/**
+	 * All car types with a version, so they can be cached until the version changes.
+	 */
+	CarTypeCatalog getCatalog()
+		throws RemoteException;
+
+	/**
+	 * The same as getAvailableCarTypes, but by id in the catalog.
+	 */
+	CarTypeSelection getAvailableCarTypeIds(Date start, Date end)
+		throws RemoteException;
+
+	/*************
+	 * LISTENERS *
+	 *************/
+
+	// Listeners are told about changes until they're removed or can no longer be reached
+	void addListener(ICompanyListener listener)
+		throws RemoteException;
+
+	void removeListener(ICompanyListener listener)
+		throws RemoteException;
+
 	/****************
 	 * RESERVATIONS *
 	 ****************/
@@ -51,6 +76,49 @@ public interface ICarRentalCompany extends Remote {
 	void cancelReservation(Reservation res)
 		throws RemoteException;
 	
+	/*******************
+	 * BATCH RESERVING *
+	 *******************/
+	
+	// Each of these saves a round trip per quote or reservation when there's more than one
+	
+	List<Quote> createQuotes(List<ReservationConstraints> constraints, String client)
+		throws ReservationException, RemoteException;
+	
+	/**
+	 * Confirms all given quotes, or none of them if one of them can't be confirmed.
+	 */
+	List<Reservation> confirmQuotes(List<Quote> quotes)
+		throws ReservationException, RemoteException;
+	
+	void cancelReservations(List<Reservation> reservations)
+		throws RemoteException;
+	
+	/***********************
+	 * TWO-PHASE RESERVING *
+	 ***********************/
+	
+	/**
+	 * Holds cars for all given quotes, or for none of them if one of them can't be
+	 * booked. The hold expires unless it's committed in time.
+	 * 
+	 * @return the id of the hold, to commit or abort it
+	 */
+	long prepareQuotes(List<Quote> quotes)
+		throws ReservationException, RemoteException;
+	
+	/**
+	 * Turns a hold into reservations.
+	 * 
+	 * @throws ReservationException if the hold expired or was aborted
+	 */
+	List<Reservation> commitHold(long holdId)
+		throws ReservationException, RemoteException;
+	
+	// Does nothing if the hold was already committed, aborted or expired
+	void abortHold(long holdId)
+		throws RemoteException;
+	
 	List<Reservation> getReservationsByRenter(String clientName)
 		throws RemoteException;
 
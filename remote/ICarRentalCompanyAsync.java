@@ -0,0 +1,98 @@
+package remote;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import shared.CarType;
+import shared.CarTypeCatalog;
+import shared.CarTypeSelection;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationConstraints;
+
+/**
+ * The calls of {@link ICarRentalCompany}, without waiting for the answers. Every method
+ * sends the call of the same name without "Async", and the future completes with what
+ * that returns, or with what it throws (a ReservationException, a RemoteException, ...).
+ *
+ * This isn't a remote interface itself: get one for a stub with transport.Async.
+ */
+public interface ICarRentalCompanyAsync {
+
+	/********
+	 * NAME *
+	 ********/
+
+	CompletableFuture<String> getNameAsync();
+
+	/*************
+	 * CAR TYPES *
+	 *************/
+
+	CompletableFuture<Collection<CarType>> getAllCarTypesAsync();
+
+	CompletableFuture<CarType> getCarTypeAsync(String carTypeName);
+
+	CompletableFuture<Boolean> isAvailableAsync(String carTypeName, Date start, Date end);
+
+	CompletableFuture<Set<CarType>> getAvailableCarTypesAsync(Date start, Date end);
+
+	CompletableFuture<CarTypeCatalog> getCatalogAsync();
+
+	CompletableFuture<CarTypeSelection> getAvailableCarTypeIdsAsync(Date start, Date end);
+
+	/*************
+	 * LISTENERS *
+	 *************/
+
+	CompletableFuture<Void> addListenerAsync(ICompanyListener listener);
+
+	CompletableFuture<Void> removeListenerAsync(ICompanyListener listener);
+
+	/****************
+	 * RESERVATIONS *
+	 ****************/
+
+	CompletableFuture<Quote> createQuoteAsync(ReservationConstraints constraints, String client);
+
+	CompletableFuture<Reservation> confirmQuoteAsync(Quote quote);
+
+	CompletableFuture<Void> cancelReservationAsync(Reservation res);
+
+	/*******************
+	 * BATCH RESERVING *
+	 *******************/
+
+	CompletableFuture<List<Quote>> createQuotesAsync(List<ReservationConstraints> constraints, String client);
+
+	CompletableFuture<List<Reservation>> confirmQuotesAsync(List<Quote> quotes);
+
+	CompletableFuture<Void> cancelReservationsAsync(List<Reservation> reservations);
+
+	/***********************
+	 * TWO-PHASE RESERVING *
+	 ***********************/
+
+	CompletableFuture<Long> prepareQuotesAsync(List<Quote> quotes);
+
+	CompletableFuture<List<Reservation>> commitHoldAsync(long holdId);
+
+	CompletableFuture<Void> abortHoldAsync(long holdId);
+
+	/***********************
+	 * RESERVATION QUERIES *
+	 ***********************/
+
+	CompletableFuture<List<Reservation>> getReservationsByRenterAsync(String clientName);
+
+	CompletableFuture<Integer> getNumberOfReservationsForTypeByNameAsync(String type);
+
+	CompletableFuture<Integer> getNumberOfReservationsByAsync(String renter);
+
+	CompletableFuture<Integer> getTotalNumberOfReservationsAsync();
+
+	CompletableFuture<String> helloAsync();
+}
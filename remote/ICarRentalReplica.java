@@ -0,0 +1,14 @@
+package remote;
+
+import java.rmi.RemoteException;
+
+/**
+ * A read-only copy of a company that follows its bookings. It answers the queries
+ * itself, and passes everything that books or cancels on to the company.
+ */
+public interface ICarRentalReplica extends ICarRentalCompany {
+
+	// How far behind the company the replica may be, in milliseconds
+	long getLagMillis()
+		throws RemoteException;
+}
@@ -0,0 +1,21 @@
+package remote;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+import shared.AvailabilityChange;
+import shared.CarTypeCatalog;
+
+/**
+ * Told about changes of a company it's registered with, see
+ * {@link ICarRentalCompany#addListener(ICompanyListener)}.
+ */
+public interface ICompanyListener extends Remote {
+
+	// The company added car types, the new catalog replaces the old one
+	void catalogChanged(CarTypeCatalog catalog) throws RemoteException;
+
+	// Cars were booked or released, sent in batches of whatever changed since the previous one
+	void availabilityChanged(String company, List<AvailabilityChange> changes) throws RemoteException;
+}
@@ -6,6 +6,7 @@ import java.rmi.RemoteException;
 import java.util.Collection;
 
 import shared.CarType;
+import shared.PartialResult;
 
 public interface IManagerSession extends Remote {
 
@@ -13,6 +14,8 @@ public interface IManagerSession extends Remote {
 	
 	void registerCarRentalCompany(ICarRentalCompany comp) throws RemoteException, NotBoundException;
 	void unregisterCarRentalCompany(String name) throws RemoteException;
+	// The agency sends queries to the replica rather than to its company, while it's close enough behind
+	void registerCarRentalReplica(ICarRentalReplica replica) throws RemoteException;
 	
 	Collection<String> getCarRentalCompanies() throws RemoteException;
 	Collection<CarType> getCarTypesOf(String company) throws RemoteException;
@@ -20,4 +23,8 @@ public interface IManagerSession extends Remote {
 	int getNumberOfReservationsForTypeByName(String type, String company) throws RemoteException;
 	int getNumberOfReservationsBy(String renter) throws RemoteException;
 	String getMostPopularCarRentalCompany() throws RemoteException;
+	
+	// The same, but also telling which companies didn't answer in time
+	PartialResult<Integer> getNumberOfReservationsByPartial(String renter) throws RemoteException;
+	PartialResult<String> getMostPopularCarRentalCompanyPartial() throws RemoteException;
 }
@@ -0,0 +1,30 @@
+package remote;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+import shared.CarType;
+import shared.PartialResult;
+
+/**
+ * The calls of {@link IManagerSession}, without waiting for the answers, see
+ * {@link ICarRentalCompanyAsync}.
+ */
+public interface IManagerSessionAsync {
+
+	CompletableFuture<String> helloAsync();
+
+	CompletableFuture<Void> registerCarRentalCompanyAsync(ICarRentalCompany comp);
+	CompletableFuture<Void> unregisterCarRentalCompanyAsync(String name);
+	CompletableFuture<Void> registerCarRentalReplicaAsync(ICarRentalReplica replica);
+
+	CompletableFuture<Collection<String>> getCarRentalCompaniesAsync();
+	CompletableFuture<Collection<CarType>> getCarTypesOfAsync(String company);
+
+	CompletableFuture<Integer> getNumberOfReservationsForTypeByNameAsync(String type, String company);
+	CompletableFuture<Integer> getNumberOfReservationsByAsync(String renter);
+	CompletableFuture<String> getMostPopularCarRentalCompanyAsync();
+
+	CompletableFuture<PartialResult<Integer>> getNumberOfReservationsByPartialAsync(String renter);
+	CompletableFuture<PartialResult<String>> getMostPopularCarRentalCompanyPartialAsync();
+}
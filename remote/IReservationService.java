@@ -0,0 +1,34 @@
+package remote;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Date;
+
+import shared.CarType;
+import shared.PartialResult;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationConstraints;
+import shared.ReservationException;
+import shared.SessionToken;
+
+/**
+ * The methods of {@link IReservationSession}, for all sessions at once: a single
+ * exported endpoint that finds the session by its token. Clients don't use this
+ * directly, they get a {@link ReservationSessionHandle} that fills in the token.
+ */
+public interface IReservationService extends Remote {
+
+	String hello(SessionToken session) throws RemoteException;
+	
+	Quote createQuote(SessionToken session, ReservationConstraints constraints, String company) throws RemoteException, ReservationException;
+	Collection<Quote> getCurrentQuotes(SessionToken session) throws RemoteException;
+	Collection<Reservation> confirmQuotes(SessionToken session) throws RemoteException, ReservationException;
+	
+	Collection<CarType> getAvailableCarTypes(SessionToken session, Date from, Date to) throws RemoteException;
+	CarType getCheapestCarType(SessionToken session, Date from, Date to) throws RemoteException;
+	
+	PartialResult<Collection<CarType>> getAvailableCarTypesPartial(SessionToken session, Date from, Date to) throws RemoteException;
+	PartialResult<CarType> getCheapestCarTypePartial(SessionToken session, Date from, Date to) throws RemoteException;
+}
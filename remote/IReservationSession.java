@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.Date;
 
 import shared.CarType;
+import shared.PartialResult;
 import shared.Quote;
 import shared.Reservation;
 import shared.ReservationConstraints;
@@ -21,4 +22,8 @@ public interface IReservationSession extends Remote {
 	
 	Collection<CarType> getAvailableCarTypes(Date from, Date to) throws RemoteException;
 	CarType getCheapestCarType(Date from, Date to) throws RemoteException;
+	
+	// The same, but also telling which companies didn't answer in time
+	PartialResult<Collection<CarType>> getAvailableCarTypesPartial(Date from, Date to) throws RemoteException;
+	PartialResult<CarType> getCheapestCarTypePartial(Date from, Date to) throws RemoteException;
 }
@@ -0,0 +1,30 @@
+package remote;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+
+import shared.CarType;
+import shared.PartialResult;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationConstraints;
+
+/**
+ * The calls of {@link IReservationSession}, without waiting for the answers, see
+ * {@link ICarRentalCompanyAsync}.
+ */
+public interface IReservationSessionAsync {
+
+	CompletableFuture<String> helloAsync();
+
+	CompletableFuture<Quote> createQuoteAsync(ReservationConstraints constraints, String company);
+	CompletableFuture<Collection<Quote>> getCurrentQuotesAsync();
+	CompletableFuture<Collection<Reservation>> confirmQuotesAsync();
+
+	CompletableFuture<Collection<CarType>> getAvailableCarTypesAsync(Date from, Date to);
+	CompletableFuture<CarType> getCheapestCarTypeAsync(Date from, Date to);
+
+	CompletableFuture<PartialResult<Collection<CarType>>> getAvailableCarTypesPartialAsync(Date from, Date to);
+	CompletableFuture<PartialResult<CarType>> getCheapestCarTypePartialAsync(Date from, Date to);
+}
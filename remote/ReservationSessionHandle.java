@@ -0,0 +1,87 @@
+package remote;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Date;
+
+import shared.CarType;
+import shared.PartialResult;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationConstraints;
+import shared.ReservationException;
+import shared.SessionToken;
+
+/**
+ * A reservation session that isn't exported by itself. It's sent to the client by
+ * value, and passes every call on to the agency's {@link IReservationService} together
+ * with the token of its session. To the client it's just another IReservationSession.
+ */
+public class ReservationSessionHandle implements IReservationSession, Serializable {
+
+	private IReservationService service;
+	private SessionToken token;
+
+	public ReservationSessionHandle(IReservationService service, SessionToken token) {
+		this.service = service;
+		this.token = token;
+	}
+
+	public SessionToken getToken() {
+		return token;
+	}
+
+	@Override
+	public String hello() throws RemoteException {
+		return service.hello(token);
+	}
+
+	@Override
+	public Quote createQuote(ReservationConstraints constraints, String company) throws RemoteException, ReservationException {
+		return service.createQuote(token, constraints, company);
+	}
+
+	@Override
+	public Collection<Quote> getCurrentQuotes() throws RemoteException {
+		return service.getCurrentQuotes(token);
+	}
+
+	@Override
+	public Collection<Reservation> confirmQuotes() throws RemoteException, ReservationException {
+		return service.confirmQuotes(token);
+	}
+
+	@Override
+	public Collection<CarType> getAvailableCarTypes(Date from, Date to) throws RemoteException {
+		return service.getAvailableCarTypes(token, from, to);
+	}
+
+	@Override
+	public CarType getCheapestCarType(Date from, Date to) throws RemoteException {
+		return service.getCheapestCarType(token, from, to);
+	}
+
+	@Override
+	public PartialResult<Collection<CarType>> getAvailableCarTypesPartial(Date from, Date to) throws RemoteException {
+		return service.getAvailableCarTypesPartial(token, from, to);
+	}
+
+	@Override
+	public PartialResult<CarType> getCheapestCarTypePartial(Date from, Date to) throws RemoteException {
+		return service.getCheapestCarTypePartial(token, from, to);
+	}
+
+	// Handles of the same session are equal, so the agency can tell which session to end
+	@Override
+	public int hashCode() {
+		return token.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ReservationSessionHandle))
+			return false;
+		return token.equals(((ReservationSessionHandle) obj).token);
+	}
+}
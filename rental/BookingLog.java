@@ -0,0 +1,70 @@
+package rental;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import shared.BookingChanges;
+import shared.Reservation;
+
+/**
+ * The latest reservations a company confirmed and cancelled, numbered in order, for
+ * replicas to follow. See ReplicaCarRentalCompany.
+ *
+ * Only the last capacity changes are kept, in a ring. A replica that falls further
+ * behind than that starts over from a snapshot, as does one that asks a log with
+ * another id, i.e. of an earlier run of the company.
+ */
+class BookingLog {
+
+	private static final SecureRandom IDS = new SecureRandom();
+
+	private final long id = IDS.nextLong();
+	private final Reservation[] reservations;
+	private final boolean[] cancelled;
+	// The sequence number of the last change, the first one is 1
+	private long sequence;
+
+	BookingLog(int capacity) {
+		this.reservations = new Reservation[capacity];
+		this.cancelled = new boolean[capacity];
+	}
+
+	long getId() {
+		return id;
+	}
+
+	synchronized long getSequence() {
+		return sequence;
+	}
+
+	synchronized void append(Collection<Reservation> changed, boolean cancellations) {
+		for (Reservation res : changed) {
+			int slot = (int) (sequence++ % reservations.length);
+			reservations[slot] = res;
+			cancelled[slot] = cancellations;
+		}
+	}
+
+	/**
+	 * At most max changes after the given one.
+	 *
+	 * @return the changes, or null if they aren't all in the log anymore
+	 */
+	synchronized BookingChanges since(long after, int max) {
+		if (after > sequence || after < sequence - reservations.length)
+			return null;
+		int count = (int) Math.min(max, sequence - after);
+		List<Reservation> changes = new ArrayList<Reservation>(count);
+		BitSet cancellations = new BitSet(count);
+		for (int i = 0; i < count; i++) {
+			int slot = (int) ((after + i) % reservations.length);
+			changes.add(reservations[slot]);
+			if (cancelled[slot])
+				cancellations.set(i);
+		}
+		return new BookingChanges(after + count, after + count == sequence, changes, cancellations);
+	}
+}
@@ -0,0 +1,147 @@
+package rental;
+
+/**
+ * Day granularity booking calendar for the cars of a single car type.
+ * 
+ * For every day it keeps a primitive count of the reservations starting and ending
+ * on that day, with a Fenwick tree over each so prefix sums cost O(log days).
+ * From those the number of reservations that touch a period follows directly:
+ * all reservations, minus those that ended before it, minus those that start after it.
+ * 
+ * Every car that is booked somewhere in a period has at least one of those reservations,
+ * so when there are fewer of them than cars of the type, a car is guaranteed to be free.
+ * Only when the type is (nearly) fully booked do the cars themselves need to be checked.
+ */
+class CapacityCalendar {
+	
+	private static final long MILLIS_PER_DAY = 1000 * 60 * 60 * 24L;
+	private static final int INITIAL_DAYS = 64;
+	
+	private int total = 0;
+	
+	// counts[i] and trees cover the days firstDay .. firstDay + length - 1
+	private long firstDay;
+	private int[] startCounts;
+	private int[] endCounts;
+	private int[] startTree;
+	private int[] endTree;
+	
+	// Times are in epoch millis
+	static long toDay(long time) {
+		return Math.floorDiv(time, MILLIS_PER_DAY);
+	}
+	
+	/************
+	 * BOOKINGS *
+	 ************/
+	
+	synchronized void addReservation(long start, long end) {
+		update(toDay(start), toDay(end), 1);
+	}
+	
+	synchronized void removeReservation(long start, long end) {
+		update(toDay(start), toDay(end), -1);
+	}
+	
+	private void update(long startDay, long endDay, int delta) {
+		ensureCapacity(startDay, endDay);
+		int s = (int)(startDay - firstDay);
+		int e = (int)(endDay - firstDay);
+		startCounts[s] += delta;
+		endCounts[e] += delta;
+		add(startTree, s, delta);
+		add(endTree, e, delta);
+		total += delta;
+	}
+	
+	/***********
+	 * QUERIES *
+	 ***********/
+	
+	/**
+	 * The number of reservations that touch at least one day of the given period.
+	 */
+	synchronized int countOverlapping(long start, long end) {
+		if (total == 0)
+			return 0;
+		long startDay = toDay(start);
+		long endDay = toDay(end);
+		int length = startCounts.length;
+		
+		// reservations ending on a day before the start of the period
+		int endedBefore = 0;
+		if (startDay > firstDay)
+			endedBefore = prefixSum(endTree, (int)Math.min(startDay - firstDay, length));
+		
+		// reservations starting on a day after the end of the period
+		int startingAfter = 0;
+		if (endDay < firstDay)
+			startingAfter = total;
+		else if (endDay - firstDay < length)
+			startingAfter = total - prefixSum(startTree, (int)(endDay - firstDay + 1));
+		
+		return total - endedBefore - startingAfter;
+	}
+	
+	/****************
+	 * FENWICK TREE *
+	 ****************/
+	
+	// Adds delta to the value at index i
+	private static void add(int[] tree, int i, int delta) {
+		for (i++; i <= tree.length; i += i & -i)
+			tree[i - 1] += delta;
+	}
+	
+	// Sum of the values at indices 0 .. n-1
+	private static int prefixSum(int[] tree, int n) {
+		int sum = 0;
+		for (; n > 0; n -= n & -n)
+			sum += tree[n - 1];
+		return sum;
+	}
+	
+	private void ensureCapacity(long startDay, long endDay) {
+		if (startCounts == null) {
+			firstDay = startDay;
+			startCounts = new int[Math.max(INITIAL_DAYS, (int)(endDay - startDay + 1))];
+			endCounts = new int[startCounts.length];
+			startTree = new int[startCounts.length];
+			endTree = new int[startCounts.length];
+			return;
+		}
+		long lastDay = firstDay + startCounts.length - 1;
+		if (startDay >= firstDay && endDay <= lastDay)
+			return;
+		
+		// grow to at least double the size, so growing stays rare
+		long newFirst = Math.min(firstDay, startDay);
+		long newLast = Math.max(lastDay, endDay);
+		int newLength = (int)Math.max(newLast - newFirst + 1, 2L * startCounts.length);
+		if (startDay < firstDay)
+			newFirst = newLast - newLength + 1;
+		
+		int offset = (int)(firstDay - newFirst);
+		startCounts = rebase(startCounts, offset, newLength);
+		endCounts = rebase(endCounts, offset, newLength);
+		startTree = buildTree(startCounts);
+		endTree = buildTree(endCounts);
+		firstDay = newFirst;
+	}
+	
+	private static int[] rebase(int[] counts, int offset, int newLength) {
+		int[] result = new int[newLength];
+		System.arraycopy(counts, 0, result, offset, counts.length);
+		return result;
+	}
+	
+	private static int[] buildTree(int[] counts) {
+		int[] tree = counts.clone();
+		for (int i = 1; i <= tree.length; i++) {
+			int parent = i + (i & -i);
+			if (parent <= tree.length)
+				tree[parent - 1] += tree[i - 1];
+		}
+		return tree;
+	}
+}
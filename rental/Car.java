@@ -3,15 +3,36 @@ package rental;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import shared.CarType;
 import shared.Reservation;
 
 public class Car {
 
+    /**
+     * Outcome of an attempt to claim a period on a car.
+     */
+    public enum Claim {
+        CLAIMED,
+        // the car is booked during (part of) the period
+        UNAVAILABLE,
+        // someone else changed the reservations of the car while we were looking
+        LOST
+    }
+
     private int id;
     private CarType type;
-    private List<Reservation> reservations;
+    // Reservations of a single car never overlap (a car is only booked when it is available),
+    // so ordering them by start date also orders them by end date. That makes the reservation
+    // with the latest start before a period's end the only one that can overlap the period.
+    private NavigableMap<Long, Reservation> reservations;
+    // Even while nobody is changing the reservations, odd while someone is. Every change bumps it,
+    // so an optimistic booker can see whether the car changed since it checked its availability.
+    private AtomicLong version = new AtomicLong();
 
     /***************
      * CONSTRUCTOR *
@@ -20,7 +41,7 @@ public class Car {
     public Car(int uid, CarType type) {
     	this.id = uid;
         this.type = type;
-        this.reservations = new ArrayList<Reservation>();
+        this.reservations = new ConcurrentSkipListMap<Long, Reservation>();
     }
 
     /******
@@ -44,28 +65,79 @@ public class Car {
      ****************/
 
     public boolean isAvailable(Date start, Date end) {
-        if(!start.before(end))
+        return isAvailable(start.getTime(), end.getTime());
+    }
+
+    // Times in epoch millis
+    public boolean isAvailable(long start, long end) {
+        if(start >= end)
             throw new IllegalArgumentException("Illegal given period");
 
-        for(Reservation reservation : reservations) {
-            if(reservation.getEndDate().before(start) || reservation.getStartDate().after(end))
-                continue;
-            return false;
-        }
-        return true;
+        Map.Entry<Long, Reservation> last = reservations.floorEntry(end);
+        return last == null || last.getValue().getEndTime() < start;
+    }
+    
+    /**
+     * Books the car for the period of the given reservation, unless it's not free then
+     * or someone else is changing the reservations of this car at the same time.
+     * Never blocks.
+     */
+    public Claim tryClaim(Reservation res) {
+        long v = version.get();
+        if ((v & 1) != 0)
+            return Claim.LOST;
+        if (!isAvailable(res.getStartTime(), res.getEndTime()))
+            return version.get() == v ? Claim.UNAVAILABLE : Claim.LOST;
+        if (!version.compareAndSet(v, v + 1))
+            return Claim.LOST;
+        reservations.put(res.getStartTime(), res);
+        version.set(v + 2);
+        return Claim.CLAIMED;
+    }
+    
+    /**
+     * Like tryClaim, but waits for whoever is changing the reservations of this car, so it
+     * never loses: it either books the car or finds it unavailable.
+     */
+    public boolean claim(Reservation res) {
+        long v = beginChange();
+        boolean free = isAvailable(res.getStartTime(), res.getEndTime());
+        if (free)
+            reservations.put(res.getStartTime(), res);
+        // nothing changed unless it was booked, so others looking at the car needn't look again
+        version.set(free ? v + 2 : v);
+        return free;
     }
     
     public void addReservation(Reservation res) {
-        reservations.add(res);
+        long v = beginChange();
+        reservations.put(res.getStartTime(), res);
+        version.set(v + 2);
+    }
+    
+    public boolean removeReservation(Reservation reservation) {
+        long v = beginChange();
+        // only remove it if it's really this reservation, not another one starting at the same time
+        boolean removed = reservations.remove(reservation.getStartTime(), reservation);
+        version.set(v + 2);
+        return removed;
+    }
+    
+    // Waits until no one else is changing the reservations, returns the (even) version it started from
+    private long beginChange() {
+        while (true) {
+            long v = version.get();
+            if ((v & 1) == 0 && version.compareAndSet(v, v + 1))
+                return v;
+            Thread.yield();
+        }
     }
     
-    public void removeReservation(Reservation reservation) {
-        // equals-method for Reservation is required!
-        reservations.remove(reservation);
+    public int getNumberOfReservations() {
+        return reservations.size();
     }
     
     public List<Reservation> getReservations() {
-    	return reservations;
-    	//a bit of crappy design, should be readonly or something, but for since this is an exercise about RMI I didn' bother.
+    	return new ArrayList<Reservation>(reservations.values());
     }
 }
\ No newline at end of file
@@ -1,32 +1,100 @@
 package rental;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import remote.IBookingSource;
 import remote.ICarRentalCompany;
+import remote.ICompanyListener;
+import shared.AvailabilityChange;
+import shared.BookingChanges;
+import shared.BookingSnapshot;
 import shared.CarType;
+import shared.CarTypeCatalog;
+import shared.CarTypeSelection;
 import shared.Quote;
 import shared.Reservation;
 import shared.ReservationConstraints;
 import shared.ReservationException;
+import shared.ReservationList;
 
-public class CarRentalCompany implements ICarRentalCompany {
+public class CarRentalCompany implements ICarRentalCompany, IBookingSource {
 
 	private static Logger logger = Logger.getLogger(CarRentalCompany.class.getName());
+	// The most passes over the cars of a type a booking makes, see getMostClaimPasses
+	public static final int MAX_CLAIM_PASSES = CarTypeFleet.MAX_CLAIM_PASSES;
 	
 	private String name;
-	private List<Car> cars;
-	private Map<String,CarType> carTypes = new HashMap<String, CarType>();
+	// Car uids are handed out densely from 0, so a car's uid is its index here.
+	// Replaced by a bigger copy when cars are added.
+	private volatile Car[] cars = new Car[0];
+	private Map<String,CarType> carTypes = new ConcurrentHashMap<String, CarType>();
+	private Map<String,CarTypeFleet> fleets = new ConcurrentHashMap<String, CarTypeFleet>();
+	// The car types in the order they were added, their index is their id in the catalog
+	private List<CarType> catalogTypes = new ArrayList<CarType>();
+	private volatile CarTypeCatalog catalog;
+	private List<ICompanyListener> listeners = new CopyOnWriteArrayList<ICompanyListener>();
+	private Queue<AvailabilityChange> pendingChanges = new ConcurrentLinkedQueue<AvailabilityChange>();
+	private AtomicBoolean changesScheduled = new AtomicBoolean();
+	// Tells the listeners about changes in the order they happened, without holding up the changes
+	private ExecutorService notifier = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), runnable -> {
+				Thread thread = new Thread(runnable, "company-listeners");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private AtomicLong nextReservationId = new AtomicLong();
+	private ConcurrentMap<Long,Reservation> reservationsById = new ConcurrentHashMap<Long, Reservation>();
+	// Secondary index on the renter, kept up to date by confirmQuote and cancelReservation
+	private ConcurrentMap<String,Set<Reservation>> reservationsByRenter = new ConcurrentHashMap<String, Set<Reservation>>();
+	private LongAdder reservationCount = new LongAdder();
+	// Only set when reservations should survive a restart, see useJournal
+	private ReservationJournal journal;
+	// Only kept once a replica asked for a snapshot, see getBookingSnapshot
+	private volatile BookingLog bookingLog;
+	private int bookingLogSize = Integer.getInteger("rental.bookingLogSize", 100000);
+	// Set with -Drental.optimisticBooking=true, see setOptimisticBooking
+	private volatile boolean optimisticBooking = Boolean.getBoolean("rental.optimisticBooking");
+	// Cars booked by prepareQuotes, waiting for commitHold or abortHold
+	private ConcurrentMap<Long,Hold> holds = new ConcurrentHashMap<Long, Hold>();
+	private AtomicLong nextHoldId = new AtomicLong();
+	private long holdTimeoutMillis = Long.getLong("rental.holdTimeoutMillis", 10000);
+	private AtomicBoolean holdSweepScheduled = new AtomicBoolean();
+	// One thread aborts the expired holds of all companies in this JVM
+	private static final ScheduledExecutorService HOLD_SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "hold-sweeper");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	/***************
 	 * CONSTRUCTOR *
@@ -35,11 +103,108 @@ public class CarRentalCompany implements ICarRentalCompany {
 	public CarRentalCompany(String name, List<Car> cars) {
 		logger.log(Level.INFO, "<{0}> Car Rental Company {0} starting up...", name);
 		this.name = name;
-		this.cars = cars;
-		for(Car car:cars)
-			carTypes.put(car.getType().getName(), car.getType());
+		this.catalog = new CarTypeCatalog(name, 0, catalogTypes);
+		addCars(cars);
+	}
+	
+	/**
+	 * Adds cars to the fleet, also while the company is running. Cars of a car type
+	 * the company didn't have yet add their type to the catalog, which gets a new
+	 * version that listeners are told about.
+	 * 
+	 * @throws IllegalArgumentException if the company already has a car with the uid of one of them
+	 */
+	public synchronized void addCars(List<Car> newCars) {
+		int maxId = cars.length - 1;
+		for(Car car:newCars)
+			maxId = Math.max(maxId, car.getId());
+		Car[] grown = Arrays.copyOf(cars, maxId + 1);
+		for(Car car:newCars) {
+			if (grown[car.getId()] != null)
+				throw new IllegalArgumentException("<" + name + "> There already is a car with uid " + car.getId());
+			grown[car.getId()] = car;
+		}
+		// before the fleets, so every car that can be booked can be found by uid
+		cars = grown;
+		// replicas can't follow a change of the fleet, they start over from a new snapshot
+		bookingLog = null;
+		
+		Map<String,List<Car>> carsByType = new LinkedHashMap<String, List<Car>>();
+		for(Car car:newCars) {
+			List<Car> typeCars = carsByType.get(car.getType().getName());
+			if (typeCars == null) {
+				typeCars = new ArrayList<Car>();
+				carsByType.put(car.getType().getName(), typeCars);
+			}
+			typeCars.add(car);
+		}
+		boolean newTypes = false;
+		for(List<Car> typeCars:carsByType.values()) {
+			CarType type = typeCars.get(0).getType();
+			CarTypeFleet fleet = fleets.get(type.getName());
+			if (fleet == null) {
+				fleet = new CarTypeFleet(type);
+				fleet.addCars(typeCars);
+				carTypes.put(type.getName(), type);
+				catalogTypes.add(type);
+				fleets.put(type.getName(), fleet);
+				newTypes = true;
+			} else {
+				fleet.addCars(typeCars);
+				// more cars of a type it already had, for all time
+				publish(type.getName(), Long.MIN_VALUE, Long.MAX_VALUE);
+			}
+		}
+		
+		if (newTypes) {
+			CarTypeCatalog changed = new CarTypeCatalog(name, catalog.getVersion() + 1, catalogTypes);
+			catalog = changed;
+			notifyListeners(listener -> listener.catalogChanged(changed));
+		}
 	}
 
+	/**
+	 * For a company that's one shard of a bigger one, see ShardedCarRentalCompany. New
+	 * reservation ids start with the shard number in their top 16 bits, so reservations
+	 * of different shards never share an id.
+	 * Must be called before reservations are restored or made.
+	 * 
+	 * @throws IllegalStateException if the company already has reservations
+	 */
+	public void useShardPrefix(int shard) {
+		if (!reservationsById.isEmpty())
+			throw new IllegalStateException("<" + name + "> Shard prefix set after reservations were made");
+		nextReservationId.set((long) shard << 48);
+	}
+
+	/**
+	 * Restores the reservations recovered from the given journal, and from then on
+	 * logs every confirmed and cancelled reservation to it.
+	 * Must be called before the company is made available to clients.
+	 */
+	public void useJournal(ReservationJournal journal) throws IOException {
+		restoreReservations(journal.recover().values());
+		journal.start();
+		this.journal = journal;
+	}
+	
+	/**
+	 * Puts back reservations that were made earlier, e.g. read from a {@link FleetSnapshot}.
+	 * Must be called before the company is made available to clients.
+	 */
+	public void restoreReservations(Collection<Reservation> reservations) {
+		long maxId = nextReservationId.get() - 1;
+		for (Reservation res : reservations) {
+			Car car = getCar(res.getCarId());
+			getFleet(car.getType().getName()).restore(car, res);
+			reservationCount.increment();
+			reservationsById.put(res.getId(), res);
+			addToRenterIndex(res);
+			maxId = Math.max(maxId, res.getId());
+		}
+		nextReservationId.set(maxId + 1);
+	}
+	
 	/* (non-Javadoc)
 	 * @see rental.ICarRentalompany#getName()
 	 */
@@ -55,7 +220,7 @@ public class CarRentalCompany implements ICarRentalCompany {
 
 	@Override
 	public Collection<CarType> getAllCarTypes() {
-		return carTypes.values();
+		return catalog.getCarTypes();
 	}
 	
 	/* (non-Javadoc)
@@ -74,8 +239,8 @@ public class CarRentalCompany implements ICarRentalCompany {
 	@Override
 	public boolean isAvailable(String carTypeName, Date start, Date end) {
 		logger.log(Level.INFO, "<{0}> Checking availability for car type {1}", new Object[]{name, carTypeName});
-		if(carTypes.containsKey(carTypeName))
-			return getAvailableCarTypes(start, end).contains(carTypes.get(carTypeName));
+		if(fleets.containsKey(carTypeName))
+			return fleets.get(carTypeName).isAvailable(start.getTime(), end.getTime());
 		throw new IllegalArgumentException("<" + carTypeName + "> No car type of name " + carTypeName);
 	}
 	
@@ -85,34 +250,106 @@ public class CarRentalCompany implements ICarRentalCompany {
 	@Override
 	public Set<CarType> getAvailableCarTypes(Date start, Date end) {
 		Set<CarType> availableCarTypes = new HashSet<CarType>();
-		for (Car car : cars) {
-			if (car.isAvailable(start, end)) {
-				availableCarTypes.add(car.getType());
+		long startTime = start.getTime();
+		long endTime = end.getTime();
+		for (CarTypeFleet fleet : fleets.values()) {
+			if (fleet.isAvailable(startTime, endTime)) {
+				availableCarTypes.add(fleet.getType());
 			}
 		}
 		return availableCarTypes;
 	}
 	
+	@Override
+	public CarTypeCatalog getCatalog() {
+		return catalog;
+	}
+	
+	@Override
+	public CarTypeSelection getAvailableCarTypeIds(Date start, Date end) {
+		CarTypeCatalog current = catalog;
+		BitSet ids = new BitSet();
+		long startTime = start.getTime();
+		long endTime = end.getTime();
+		for (int id = 0; id < current.getCarTypes().size(); id++) {
+			if (fleets.get(current.getCarType(id).getName()).isAvailable(startTime, endTime))
+				ids.set(id);
+		}
+		return new CarTypeSelection(current.getVersion(), ids);
+	}
+	
+	/*************
+	 * LISTENERS *
+	 *************/
+	
+	@Override
+	public void addListener(ICompanyListener listener) {
+		listeners.add(listener);
+	}
+	
+	@Override
+	public void removeListener(ICompanyListener listener) {
+		listeners.remove(listener);
+	}
+	
+	private interface ListenerCall {
+		void call(ICompanyListener listener) throws RemoteException;
+	}
+	
+	private void notifyListeners(ListenerCall call) {
+		notifier.execute(() -> callListeners(call));
+	}
+	
+	// Only on the notifier thread
+	private void callListeners(ListenerCall call) {
+		for (ICompanyListener listener : listeners) {
+			try {
+				call.call(listener);
+			} catch (RemoteException e) {
+				logger.log(Level.WARNING, "<" + name + "> Dropping a listener that can't be reached", e);
+				listeners.remove(listener);
+			}
+		}
+	}
+	
+	/**
+	 * Lets the listeners know the availability of a car type changed. Changes are sent
+	 * in batches: everything that changed while the previous batch was on its way goes
+	 * out in the next one, so a busy company doesn't make a call per booking.
+	 */
+	private void publish(String carType, long start, long end) {
+		if (listeners.isEmpty())
+			return;
+		pendingChanges.add(new AvailabilityChange(carType, start, end));
+		if (changesScheduled.compareAndSet(false, true))
+			notifier.execute(this::publishPending);
+	}
+	
+	private void publishPending() {
+		changesScheduled.set(false);
+		List<AvailabilityChange> changes = new ArrayList<AvailabilityChange>();
+		for (AvailabilityChange change = pendingChanges.poll(); change != null; change = pendingChanges.poll())
+			changes.add(change);
+		if (!changes.isEmpty())
+			callListeners(listener -> listener.availabilityChanged(name, changes));
+	}
+	
 	/*********
 	 * CARS *
 	 *********/
 	
 	private Car getCar(int uid) {
-		for (Car car : cars) {
-			if (car.getId() == uid)
-				return car;
-		}
+		Car[] cars = this.cars;
+		if (uid >= 0 && uid < cars.length && cars[uid] != null)
+			return cars[uid];
 		throw new IllegalArgumentException("<" + name + "> No car with uid " + uid);
 	}
 	
-	private List<Car> getAvailableCars(String carType, Date start, Date end) {
-		List<Car> availableCars = new LinkedList<Car>();
-		for (Car car : cars) {
-			if (car.getType().getName().equals(carType) && car.isAvailable(start, end)) {
-				availableCars.add(car);
-			}
-		}
-		return availableCars;
+	private CarTypeFleet getFleet(String carTypeName) {
+		CarTypeFleet fleet = fleets.get(carTypeName);
+		if (fleet == null)
+			throw new IllegalArgumentException("<" + carTypeName + "> No car type of name " + carTypeName);
+		return fleet;
 	}
 
 	/* (non-Javadoc)
@@ -120,25 +357,25 @@ public class CarRentalCompany implements ICarRentalCompany {
 	 */
 
 	@Override
-	synchronized public Quote createQuote(ReservationConstraints constraints, String client)
+	public Quote createQuote(ReservationConstraints constraints, String client)
 			throws ReservationException {
 		logger.log(Level.INFO, "<{0}> Creating tentative reservation for {1} with constraints {2}", 
                         new Object[]{name, client, constraints.toString()});
 		
 		CarType type = getCarType(constraints.getCarType());
 		
-		if(!isAvailable(constraints.getCarType(), constraints.getStartDate(), constraints.getEndDate()))
+		if(!getFleet(constraints.getCarType()).isAvailable(constraints.getStartTime(), constraints.getEndTime()))
 			throw new ReservationException("<" + name
 				+ "> No cars available to satisfy the given constraints.");
 		
-		double price = calculateRentalPrice(type.getRentalPricePerDay(),constraints.getStartDate(), constraints.getEndDate());
+		double price = calculateRentalPrice(type.getRentalPricePerDay(), constraints.getStartTime(), constraints.getEndTime());
 		
-		return new Quote(client, constraints.getStartDate(), constraints.getEndDate(), getName(), constraints.getCarType(), price);
+		return new Quote(client, constraints.getStartTime(), constraints.getEndTime(), getName(), constraints.getCarType(), price);
 	}
 
 	// Implementation can be subject to different pricing strategies
-	private double calculateRentalPrice(double rentalPricePerDay, Date start, Date end) {
-		return rentalPricePerDay * Math.ceil((end.getTime() - start.getTime())
+	private double calculateRentalPrice(double rentalPricePerDay, long start, long end) {
+		return rentalPricePerDay * Math.ceil((end - start)
 						/ (1000 * 60 * 60 * 24D));
 	}
 
@@ -146,26 +383,350 @@ public class CarRentalCompany implements ICarRentalCompany {
 	 * @see rental.ICarRentalompany#confirmQuote(rental.Quote)
 	 */
 	@Override
-	synchronized public Reservation confirmQuote(Quote quote) throws ReservationException {
+	public Reservation confirmQuote(Quote quote) throws ReservationException, RemoteException {
+		Reservation res = book(quote, optimisticBooking);
+		store(Collections.singletonList(res));
+		return res;
+	}
+
+	// Books a car for the quote, without journaling it yet
+	private Reservation book(Quote quote, boolean optimistic) throws ReservationException {
 		logger.log(Level.INFO, "<{0}> Reservation of {1}", new Object[]{name, quote.toString()});
-		List<Car> availableCars = getAvailableCars(quote.getCarType(), quote.getStartDate(), quote.getEndDate());
-		if(availableCars.isEmpty())
+		Reservation res = null;
+		CarTypeFleet fleet = fleets.get(quote.getCarType());
+		if (fleet != null) {
+			long id = nextReservationId.getAndIncrement();
+			res = optimistic ? fleet.bookOptimistically(quote, id) : fleet.book(quote, id);
+		}
+		if(res == null)
 			throw new ReservationException("Reservation failed, all cars of type " + quote.getCarType()
 	                + " are unavailable from " + quote.getStartDate() + " to " + quote.getEndDate());
-		Car car = availableCars.get((int)(Math.random()*availableCars.size()));
-		
-		Reservation res = new Reservation(quote, car.getId());
-		car.addReservation(res);
+		publish(res.getCarType(), res.getStartTime(), res.getEndTime());
 		return res;
 	}
+	
+	/**
+	 * Books all quotes while holding the locks of every car type involved, taken in
+	 * name order so two batches can't deadlock. If one of them can't be booked, the
+	 * ones booked so far are undone before anyone else could have seen them.
+	 */
+	private List<Reservation> bookAll(List<Quote> quotes) throws ReservationException {
+		SortedMap<String,CarTypeFleet> involved = new TreeMap<String, CarTypeFleet>();
+		for (Quote quote : quotes) {
+			CarTypeFleet fleet = fleets.get(quote.getCarType());
+			if (fleet != null)
+				involved.put(quote.getCarType(), fleet);
+		}
+		
+		List<Reservation> booked = new ArrayList<Reservation>(quotes.size());
+		for (CarTypeFleet fleet : involved.values())
+			fleet.lock();
+		try {
+			for (Quote quote : quotes)
+				booked.add(book(quote, false));
+		} catch (ReservationException e) {
+			for (Reservation res : booked)
+				unbook(res);
+			throw e;
+		} finally {
+			for (CarTypeFleet fleet : involved.values())
+				fleet.unlock();
+		}
+		return booked;
+	}
+	
+	// Undoes book, for reservations that were never handed out
+	private void unbook(Reservation res) {
+		reservationsById.remove(res.getId());
+		Car car = getCar(res.getCarId());
+		if (getFleet(car.getType().getName()).release(car, res))
+			publish(res.getCarType(), res.getStartTime(), res.getEndTime());
+	}
+	
+	// Journals freshly booked reservations and makes them visible to the indexes
+	private void store(List<Reservation> booked) throws ReservationException, RemoteException {
+		// Indexed before they're journaled, so a replica's snapshot may see them before
+		// they're stored, see getBookingSnapshot and the failure below.
+		for (Reservation res : booked)
+			reservationsById.put(res.getId(), res);
+		if (journal != null) {
+			// Only report the reservations once they're safely on disk
+			try {
+				journal.logConfirmed(booked);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "<" + name + "> Could not journal " + booked.size() + " reservation(s)", e);
+				for (Reservation res : booked)
+					unbook(res);
+				// a replica's snapshot may have seen them while they were indexed
+				logBookings(booked, true);
+				if (journal.isBroken())
+					throw outOfService(e);
+				throw new ReservationException("<" + name + "> Reservation failed, it could not be stored.");
+			}
+		}
+		// Only counted now, so held reservations are counted by neither the company nor the fleet
+		for (Reservation res : booked) {
+			reservationCount.increment();
+			getFleet(res.getCarType()).countReservation();
+			addToRenterIndex(res);
+		}
+		logBookings(booked, false);
+	}
+	
+	// Logged after the indexes changed, so a snapshot never misses a change before its sequence number
+	private void logBookings(List<Reservation> changed, boolean cancellations) {
+		BookingLog log = bookingLog;
+		if (log != null && !changed.isEmpty())
+			log.append(changed, cancellations);
+	}
+
+	/**
+	 * In optimistic mode, confirming a quote doesn't lock its car type. Instead
+	 * each booking claims a car with a compare-and-set and moves on to another car
+	 * when it loses the race. This scales better when many clients book the same
+	 * popular car type at once. Either way a car is never booked twice.
+	 */
+	public void setOptimisticBooking(boolean optimisticBooking) {
+		this.optimisticBooking = optimisticBooking;
+	}
+	
+	public boolean isOptimisticBooking() {
+		return optimisticBooking;
+	}
+	
+	/**
+	 * The most passes over the cars of a type that any booking took so far. Only
+	 * optimistic bookings take more than one, when they lose cars to other bookings,
+	 * and never more than MAX_CLAIM_PASSES.
+	 */
+	public int getMostClaimPasses() {
+		int most = 1;
+		for (CarTypeFleet fleet : fleets.values())
+			most = Math.max(most, fleet.getMostClaimPasses());
+		return most;
+	}
 
 	/* (non-Javadoc)
 	 * @see rental.ICarRentalompany#cancelReservation(rental.Reservation)
 	 */
 	@Override
-	synchronized public void cancelReservation(Reservation res) {
-		logger.log(Level.INFO, "<{0}> Cancelling reservation {1}", new Object[]{name, res.toString()});
-		getCar(res.getCarId()).removeReservation(res);
+	public void cancelReservation(Reservation res) throws RemoteException {
+		cancelReservations(Collections.singletonList(res));
+	}
+	
+	/*******************
+	 * BATCH RESERVING *
+	 *******************/
+	
+	@Override
+	public List<Quote> createQuotes(List<ReservationConstraints> constraints, String client)
+			throws ReservationException {
+		List<Quote> quotes = new ArrayList<Quote>(constraints.size());
+		for (ReservationConstraints c : constraints)
+			quotes.add(createQuote(c, client));
+		return quotes;
+	}
+	
+	/**
+	 * Books all quotes or none of them, see bookAll. The reservations are journaled
+	 * together, after the locks are released, so they share a single disk sync.
+	 */
+	@Override
+	public List<Reservation> confirmQuotes(List<Quote> quotes) throws ReservationException, RemoteException {
+		List<Reservation> booked = bookAll(quotes);
+		store(booked);
+		return new ReservationList(booked);
+	}
+	
+	/**
+	 * The cars are only freed once the cancellations are journaled. If that fails,
+	 * nothing is cancelled and the caller gets a RemoteException.
+	 */
+	@Override
+	public void cancelReservations(List<Reservation> reservations) throws RemoteException {
+		List<Reservation> cancelled = new ArrayList<Reservation>(reservations.size());
+		for (Reservation res : reservations) {
+			logger.log(Level.INFO, "<{0}> Cancelling reservation {1}", new Object[]{name, res.toString()});
+			// Only the reservation with this id and the same contents is cancelled, and only once
+			if (reservationsById.remove(res.getId(), res))
+				cancelled.add(res);
+		}
+		if (journal != null && !cancelled.isEmpty()) {
+			try {
+				journal.logCancelled(cancelled);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "<" + name + "> Could not journal cancellation of " + cancelled.size() + " reservation(s)", e);
+				// the cars were never freed, so indexing them again undoes it all
+				for (Reservation res : cancelled)
+					reservationsById.put(res.getId(), res);
+				if (journal.isBroken())
+					throw outOfService(e);
+				throw new RemoteException("<" + name + "> Cancellation failed, it could not be stored.", e);
+			}
+		}
+		freeCars(cancelled);
+	}
+	
+	// Nothing can be stored anymore, which callers should see as a company that's down, see
+	// ReservationJournal#isBroken. The agency stops calling it for a while, see CompanyMonitor.
+	private RemoteException outOfService(IOException e) {
+		return new RemoteException("<" + name + "> Out of service, its journal can't be written.", e);
+	}
+	
+	// Frees the cars of cancelled reservations, which are no longer indexed by id
+	private void freeCars(List<Reservation> cancelled) {
+		List<Reservation> freed = new ArrayList<Reservation>(cancelled.size());
+		for (Reservation res : cancelled) {
+			Car car = getCar(res.getCarId());
+			if (getFleet(car.getType().getName()).cancel(car, res)) {
+				reservationCount.decrement();
+				removeFromRenterIndex(res);
+				freed.add(res);
+				publish(res.getCarType(), res.getStartTime(), res.getEndTime());
+			}
+		}
+		logBookings(freed, true);
+	}
+	
+	/***********************
+	 * TWO-PHASE RESERVING *
+	 ***********************/
+	
+	/**
+	 * Books all quotes or none of them, like confirmQuotes, but only holds the cars
+	 * until the hold is committed or aborted. Holds that are neither committed nor
+	 * aborted within the hold timeout (-Drental.holdTimeoutMillis) are aborted
+	 * automatically.
+	 */
+	@Override
+	public long prepareQuotes(List<Quote> quotes) throws ReservationException {
+		List<Reservation> booked = bookAll(quotes);
+		long id = nextHoldId.getAndIncrement();
+		holds.put(id, new Hold(booked, System.currentTimeMillis() + holdTimeoutMillis));
+		scheduleHoldSweep();
+		logger.log(Level.INFO, "<{0}> Holding {1} reservation(s) as hold {2}", new Object[]{name, booked.size(), id});
+		return id;
+	}
+	
+	@Override
+	public List<Reservation> commitHold(long holdId) throws ReservationException, RemoteException {
+		Hold hold = holds.remove(holdId);
+		if (hold == null)
+			throw new ReservationException("<" + name + "> Reservation failed, hold " + holdId + " expired or was aborted.");
+		store(hold.reservations);
+		return new ReservationList(hold.reservations);
+	}
+	
+	@Override
+	public void abortHold(long holdId) {
+		Hold hold = holds.remove(holdId);
+		if (hold == null)
+			return;
+		logger.log(Level.INFO, "<{0}> Aborting hold {1}", new Object[]{name, holdId});
+		for (Reservation res : hold.reservations)
+			unbook(res);
+	}
+	
+	private void scheduleHoldSweep() {
+		if (holdSweepScheduled.compareAndSet(false, true)) {
+			long period = Math.max(1, holdTimeoutMillis / 2);
+			HOLD_SWEEPER.scheduleWithFixedDelay(this::abortExpiredHolds, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void abortExpiredHolds() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Long,Hold> entry : holds.entrySet()) {
+			Hold hold = entry.getValue();
+			// whoever removes the hold first, commit or sweeper, gets to decide its fate
+			if (hold.expiresAt < now && holds.remove(entry.getKey(), hold)) {
+				logger.log(Level.INFO, "<{0}> Hold {1} expired", new Object[]{name, entry.getKey()});
+				for (Reservation res : hold.reservations)
+					unbook(res);
+			}
+		}
+	}
+	
+	private static class Hold {
+		final List<Reservation> reservations;
+		final long expiresAt;
+		
+		Hold(List<Reservation> reservations, long expiresAt) {
+			this.reservations = reservations;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	/***************
+	 * REPLICATION *
+	 ***************/
+	
+	/**
+	 * Starts logging bookings for replicas if it didn't yet. Changes that are logged
+	 * while the snapshot is taken may be in the snapshot as well, replicas skip those.
+	 */
+	@Override
+	public synchronized BookingSnapshot getBookingSnapshot() {
+		BookingLog log = bookingLog;
+		if (log == null) {
+			log = new BookingLog(bookingLogSize);
+			bookingLog = log;
+		}
+		// before the reservations are copied, so none of the later changes are missed
+		long sequence = log.getSequence();
+		CarTypeCatalog current = catalog;
+		Car[] cars = this.cars;
+		int[] carTypeIds = new int[cars.length];
+		for (int uid = 0; uid < cars.length; uid++)
+			carTypeIds[uid] = cars[uid] == null ? -1 : current.getId(cars[uid].getType().getName());
+		return new BookingSnapshot(current, carTypeIds, new ArrayList<Reservation>(reservationsById.values()), log.getId(), sequence);
+	}
+	
+	@Override
+	public BookingChanges getBookingChangesSince(long logId, long sequence, int max) {
+		BookingLog log = bookingLog;
+		if (log == null || log.getId() != logId)
+			return null;
+		return log.since(sequence, max);
+	}
+	
+	/**
+	 * Applies the changes of the company this one is a replica of, see
+	 * ReplicaCarRentalCompany. Changes it already has are skipped.
+	 */
+	void applyBookingChanges(BookingChanges changes) {
+		List<Reservation> changed = changes.getReservations();
+		for (int i = 0; i < changed.size(); i++) {
+			Reservation res = changed.get(i);
+			if (changes.isCancelled(i)) {
+				// replicas don't journal, the company they follow did
+				if (reservationsById.remove(res.getId(), res))
+					freeCars(Collections.singletonList(res));
+			} else if (reservationsById.putIfAbsent(res.getId(), res) == null) {
+				Car car = getCar(res.getCarId());
+				getFleet(car.getType().getName()).restore(car, res);
+				reservationCount.increment();
+				addToRenterIndex(res);
+				publish(res.getCarType(), res.getStartTime(), res.getEndTime());
+			}
+		}
+	}
+	
+	private void addToRenterIndex(Reservation res) {
+		reservationsByRenter.compute(res.getCarRenter(), (renter, reservations) -> {
+			if (reservations == null)
+				reservations = ConcurrentHashMap.newKeySet();
+			reservations.add(res);
+			return reservations;
+		});
+	}
+	
+	private void removeFromRenterIndex(Reservation res) {
+		// drop renters without reservations, so the index doesn't keep growing
+		reservationsByRenter.computeIfPresent(res.getCarRenter(), (renter, reservations) -> {
+			reservations.remove(res);
+			return reservations.isEmpty() ? null : reservations;
+		});
 	}
 
 	@Override
@@ -174,48 +735,31 @@ public class CarRentalCompany implements ICarRentalCompany {
 	}
 
 	@Override
-	synchronized public List<Reservation> getReservationsByRenter(String clientName)
+	public List<Reservation> getReservationsByRenter(String clientName)
 			throws RemoteException {
-		List<Reservation> reservations = new ArrayList<Reservation>();
-		
-		for(Car car: cars) {
-			for(Reservation res: car.getReservations()) {
-				if (res.getCarRenter().equals(clientName)) {
-					reservations.add(res);
-				}
-			}
-		}
-		
-		return reservations;
+		Set<Reservation> reservations = reservationsByRenter.get(clientName);
+		if (reservations == null)
+			return new ReservationList();
+		return new ReservationList(reservations);
 	}
 
 	@Override
-	synchronized public int getNumberOfReservationsForTypeByName(String carType)
+	public int getNumberOfReservationsForTypeByName(String carType)
 			throws RemoteException {
-		int count = 0;
-		
-		for(Car car: cars) {
-			if (car.getType().getName().equals(carType)) {
-				count += car.getReservations().size();
-			}
-		}
-		
-		return count;
+		CarTypeFleet fleet = fleets.get(carType);
+		if (fleet == null)
+			return 0;
+		return fleet.getNumberOfReservations();
 	}
 
 	@Override
-	synchronized public int getNumberOfReservationsBy(String renter) throws RemoteException {
-		return getReservationsByRenter(renter).size();
+	public int getNumberOfReservationsBy(String renter) throws RemoteException {
+		Set<Reservation> reservations = reservationsByRenter.get(renter);
+		return reservations == null ? 0 : reservations.size();
 	}
 
 	@Override
-	synchronized public int getTotalNumberOfReservations() throws RemoteException {
-		int count = 0;
-		
-		for(Car car: cars) {
-			count += car.getReservations().size();
-		}
-		
-		return count;
+	public int getTotalNumberOfReservations() throws RemoteException {
+		return reservationCount.intValue();
 	}
 }
\ No newline at end of file
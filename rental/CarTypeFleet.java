@@ -0,0 +1,235 @@
+package rental;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import shared.CarType;
+import shared.Quote;
+import shared.Reservation;
+
+/**
+ * All cars of a company that share the same car type.
+ * 
+ * Keeping the fleet partitioned this way means type specific operations only
+ * have to look at the cars of that type, instead of going over the whole fleet
+ * and comparing type names.
+ * 
+ * Each fleet is also its own lock stripe: reading the reservations of its cars
+ * takes the shared read lock, changing them takes the write lock. Bookings for
+ * different car types therefore never wait on each other, and availability checks
+ * only wait on bookings of the same type.
+ */
+class CarTypeFleet {
+	
+	// Passes over the cars a booking makes while it keeps losing cars to other bookings,
+	// the last of which waits for them instead, see claimFreeCar
+	static final int MAX_CLAIM_PASSES = 4;
+	
+	private CarType type;
+	private List<Car> cars = new CopyOnWriteArrayList<Car>();
+	private CapacityCalendar calendar = new CapacityCalendar();
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	// Kept up to date on every stored booking and cancellation, so counting needs no lock.
+	// Cars that are only held, see CarRentalCompany#prepareQuotes, aren't counted.
+	private LongAdder reservationCount = new LongAdder();
+	// The most passes any booking of this type took so far, only updated past the first
+	private AtomicInteger mostClaimPasses = new AtomicInteger(1);
+	
+	/***************
+	 * CONSTRUCTOR *
+	 ***************/
+	
+	CarTypeFleet(CarType type) {
+		this.type = type;
+	}
+	
+	CarType getType() {
+		return type;
+	}
+	
+	/********
+	 * CARS *
+	 ********/
+	
+	// Optimistic bookings go over the cars without the lock, so they're copied on write
+	void addCars(List<Car> newCars) {
+		lock.writeLock().lock();
+		try {
+			cars.addAll(newCars);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	int size() {
+		return cars.size();
+	}
+	
+	// Stops at the first free car, there is no need to know how many are free
+	// Times in epoch millis
+	boolean isAvailable(long start, long end) {
+		if(start >= end)
+			throw new IllegalArgumentException("Illegal given period");
+		
+		lock.readLock().lock();
+		try {
+			if (calendar.countOverlapping(start, end) < cars.size())
+				return true;
+			
+			for (Car car : cars) {
+				if (car.isAvailable(start, end))
+					return true;
+			}
+			return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/****************
+	 * RESERVATIONS *
+	 ****************/
+	
+	/**
+	 * Books a free car of this type for the quote, holding the write lock of this type
+	 * so other bookings for this type wait until it's done.
+	 * 
+	 * @return the new reservation, or null if no car is free for the quoted period
+	 */
+	Reservation book(Quote quote, long reservationId) {
+		lock.writeLock().lock();
+		try {
+			return claimFreeCar(quote, reservationId);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Books a free car of this type for the quote without taking the lock of this type.
+	 * Concurrent bookings each try to claim a car with a compare-and-set on its version,
+	 * and whoever loses a car simply moves on to the next one. Bookings only contend
+	 * when they go for the same car, rather than for the whole type. A booking that keeps
+	 * losing waits for the cars after a few passes, see MAX_CLAIM_PASSES.
+	 * 
+	 * @return the new reservation, or null if no car is free for the quoted period
+	 */
+	Reservation bookOptimistically(Quote quote, long reservationId) {
+		return claimFreeCar(quote, reservationId);
+	}
+	
+	/**
+	 * Holds the write lock of this type across several bookings and cancellations,
+	 * which take it again themselves. Used to book a batch of quotes as a whole.
+	 */
+	void lock() {
+		lock.writeLock().lock();
+	}
+	
+	void unlock() {
+		lock.writeLock().unlock();
+	}
+	
+	private Reservation claimFreeCar(Quote quote, long reservationId) {
+		// the catalog may list a type before any of its cars are added
+		if (cars.isEmpty())
+			return null;
+		
+		// Count it in the calendar first, so that it errs on the side of "booked"
+		// while the car is being claimed.
+		calendar.addReservation(quote.getStartTime(), quote.getEndTime());
+		
+		// Start at a random car so concurrent bookings spread out over the fleet
+		int offset = ThreadLocalRandom.current().nextInt(cars.size());
+		boolean lostAny = true;
+		int passes = 0;
+		while (lostAny) {
+			lostAny = false;
+			// the last pass waits for every car it would lose, so it's the last
+			boolean waiting = ++passes == MAX_CLAIM_PASSES;
+			for (int i = 0; i < cars.size(); i++) {
+				Car car = cars.get((offset + i) % cars.size());
+				Reservation res = new Reservation(quote, car.getId(), reservationId);
+				if (waiting) {
+					if (car.claim(res))
+						return claimed(res, passes);
+					continue;
+				}
+				Car.Claim claim = car.tryClaim(res);
+				if (claim == Car.Claim.CLAIMED)
+					return claimed(res, passes);
+				if (claim == Car.Claim.LOST)
+					lostAny = true;
+			}
+			// cars we lost may have become free again, so only give up
+			// after a pass in which every car was really unavailable
+			if (lostAny)
+				Thread.yield();
+		}
+		
+		countPasses(passes);
+		calendar.removeReservation(quote.getStartTime(), quote.getEndTime());
+		return null;
+	}
+	
+	private Reservation claimed(Reservation res, int passes) {
+		countPasses(passes);
+		return res;
+	}
+	
+	private void countPasses(int passes) {
+		if (passes > 1)
+			mostClaimPasses.accumulateAndGet(passes, Math::max);
+	}
+	
+	int getMostClaimPasses() {
+		return mostClaimPasses.get();
+	}
+	
+	// Puts back a reservation that was recovered from the journal
+	void restore(Car car, Reservation res) {
+		lock.writeLock().lock();
+		try {
+			car.addReservation(res);
+			calendar.addReservation(res.getStartTime(), res.getEndTime());
+			reservationCount.increment();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	// Counts a booking once it's stored, see CarRentalCompany#store
+	void countReservation() {
+		reservationCount.increment();
+	}
+	
+	// Cancels a stored reservation
+	boolean cancel(Car car, Reservation res) {
+		if (!release(car, res))
+			return false;
+		reservationCount.decrement();
+		return true;
+	}
+	
+	// Frees the car of a booking that was never stored, e.g. of an aborted hold
+	boolean release(Car car, Reservation res) {
+		lock.writeLock().lock();
+		try {
+			if (!car.removeReservation(res))
+				return false;
+			calendar.removeReservation(res.getStartTime(), res.getEndTime());
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	int getNumberOfReservations() {
+		return reservationCount.intValue();
+	}
+}
@@ -0,0 +1,267 @@
+package rental;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import shared.CarType;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationException;
+
+/**
+ * Compact binary form of a company's fleet and reservations, as an alternative to the csv files.
+ *
+ * The file is memory-mapped when it's read. Cars are stored as runs of consecutive uids of
+ * the same type, so loading a fleet of millions of cars only reads a handful of numbers per
+ * car type. Reservations are fixed size records that refer to a table of renter and car type
+ * names, so reading one is a few absolute reads from the mapped buffer.
+ *
+ * Layout (all numbers big-endian, strings as an unsigned short length and UTF-8 bytes):
+ *   int magic, int version
+ *   int #types,	per type: name, int seats, float trunk space, double price per day, byte smoking
+ *   int #runs,		per run: int first uid, int number of cars, int type index
+ *   int #names,	per name: the name
+ *   int #reservations,	per reservation: long id, int car uid, int renter index, int car type index,
+ *   			long start, long end, double price
+ *
+ * To convert a csv file: java rental.FleetSnapshot hertz.csv hertz.fleet
+ */
+public class FleetSnapshot {
+
+	private static final int MAGIC = 0x464c5431; // "FLT1"
+	private static final int VERSION = 1;
+	private static final int RESERVATION_SIZE = 8 + 4 + 4 + 4 + 8 + 8 + 8;
+	// runs take a few bytes for any number of cars, so a corrupt one is only caught by a limit
+	private static final int MAX_CARS = Integer.getInteger("rental.snapshotMaxCars", 1 << 24);
+
+	private List<Car> cars;
+	private List<Reservation> reservations;
+
+	private FleetSnapshot(List<Car> cars, List<Reservation> reservations) {
+		this.cars = cars;
+		this.reservations = reservations;
+	}
+
+	public List<Car> getCars() {
+		return cars;
+	}
+
+	public List<Reservation> getReservations() {
+		return reservations;
+	}
+
+	/********
+	 * MAIN *
+	 ********/
+
+	public static void main(String[] args) throws ReservationException, NumberFormatException, IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java rental.FleetSnapshot <fleet.csv> <fleet snapshot>");
+			System.exit(1);
+		}
+		List<Car> cars = RentalServer.loadData(args[0]);
+		write(new File(args[1]), cars, new ArrayList<Reservation>());
+		System.out.println("Wrote " + cars.size() + " cars to " + args[1]);
+	}
+
+	/***********
+	 * WRITING *
+	 ***********/
+
+	public static void write(File file, List<Car> cars, Collection<Reservation> reservations) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			Map<CarType, Integer> types = new LinkedHashMap<CarType, Integer>();
+			for (Car car : cars) {
+				if (!types.containsKey(car.getType()))
+					types.put(car.getType(), types.size());
+			}
+			out.writeInt(types.size());
+			for (CarType type : types.keySet()) {
+				writeString(out, type.getName());
+				out.writeInt(type.getNbOfSeats());
+				out.writeFloat(type.getTrunkSpace());
+				out.writeDouble(type.getRentalPricePerDay());
+				out.writeBoolean(type.isSmokingAllowed());
+			}
+
+			List<int[]> runs = new ArrayList<int[]>();
+			int[] run = null;
+			for (Car car : cars) {
+				int type = types.get(car.getType());
+				if (run != null && run[0] + run[1] == car.getId() && run[2] == type) {
+					run[1]++;
+				} else {
+					run = new int[]{car.getId(), 1, type};
+					runs.add(run);
+				}
+			}
+			out.writeInt(runs.size());
+			for (int[] r : runs) {
+				out.writeInt(r[0]);
+				out.writeInt(r[1]);
+				out.writeInt(r[2]);
+			}
+
+			writeReservations(out, reservations);
+		} finally {
+			out.close();
+		}
+	}
+
+	static void writeReservations(DataOutputStream out, Collection<Reservation> reservations) throws IOException {
+		Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+		for (Reservation res : reservations) {
+			if (!names.containsKey(res.getCarRenter()))
+				names.put(res.getCarRenter(), names.size());
+			if (!names.containsKey(res.getCarType()))
+				names.put(res.getCarType(), names.size());
+		}
+		out.writeInt(names.size());
+		for (String name : names.keySet())
+			writeString(out, name);
+
+		out.writeInt(reservations.size());
+		for (Reservation res : reservations) {
+			out.writeLong(res.getId());
+			out.writeInt(res.getCarId());
+			out.writeInt(names.get(res.getCarRenter()));
+			out.writeInt(names.get(res.getCarType()));
+			out.writeLong(res.getStartTime());
+			out.writeLong(res.getEndTime());
+			out.writeDouble(res.getRentalPrice());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xffff)
+			throw new IOException("Name too long: " + s);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/***********
+	 * READING *
+	 ***********/
+
+	/**
+	 * Maps the given snapshot into memory and reads it.
+	 *
+	 * @param company name of the company the reservations belong to
+	 */
+	public static FleetSnapshot read(File file, String company) throws IOException {
+		ByteBuffer in = map(file);
+		try {
+			return read(in, file, company);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Snapshot is truncated: " + file, e);
+		}
+	}
+
+	private static FleetSnapshot read(ByteBuffer in, File file, String company) throws IOException {
+		if (in.getInt() != MAGIC || in.getInt() != VERSION)
+			throw new IOException("Not a fleet snapshot: " + file);
+
+		// name, seats, trunk space, price and smoking
+		CarType[] types = new CarType[readCount(in, 2 + 4 + 4 + 8 + 1)];
+		for (int i = 0; i < types.length; i++) {
+			String name = readString(in);
+			int seats = in.getInt();
+			float trunkSpace = in.getFloat();
+			double price = in.getDouble();
+			boolean smoking = in.get() != 0;
+			types[i] = new CarType(name, seats, trunkSpace, price, smoking);
+		}
+
+		List<Car> cars = new ArrayList<Car>();
+		for (int runs = readCount(in, 12); runs > 0; runs--) {
+			int uid = in.getInt();
+			int count = in.getInt();
+			if (count < 0 || uid + count < uid || count > MAX_CARS - cars.size())
+				throw new IOException("Snapshot is corrupt: " + count + " cars from uid " + uid);
+			CarType type = types[readIndex(in.getInt(), types.length)];
+			for (int end = uid + count; uid < end; uid++)
+				cars.add(new Car(uid, type));
+		}
+
+		return new FleetSnapshot(cars, readReservations(in, company));
+	}
+
+	static ByteBuffer map(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// the mapping stays valid after the channel is closed
+			channel.close();
+		}
+	}
+
+	static List<Reservation> readReservations(ByteBuffer in, String company) throws IOException {
+		try {
+			return decodeReservations(in, company);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Snapshot is truncated", e);
+		}
+	}
+
+	private static List<Reservation> decodeReservations(ByteBuffer in, String company) throws IOException {
+		String[] names = new String[readCount(in, 2)];
+		for (int i = 0; i < names.length; i++)
+			names[i] = readString(in);
+
+		int count = readCount(in, RESERVATION_SIZE);
+		List<Reservation> reservations = new ArrayList<Reservation>(count);
+		for (int i = 0, pos = in.position(); i < count; i++, pos += RESERVATION_SIZE) {
+			long id = in.getLong(pos);
+			int carId = in.getInt(pos + 8);
+			String renter = names[readIndex(in.getInt(pos + 12), names.length)];
+			String carType = names[readIndex(in.getInt(pos + 16), names.length)];
+			long start = in.getLong(pos + 20);
+			long end = in.getLong(pos + 28);
+			double price = in.getDouble(pos + 36);
+			reservations.add(new Reservation(new Quote(renter, start, end, company, carType, price), carId, id));
+		}
+		in.position(in.position() + count * RESERVATION_SIZE);
+		return reservations;
+	}
+
+	// A count of entries of at least the given size, which must all fit in what's left
+	private static int readCount(ByteBuffer in, int bytesEach) throws IOException {
+		int count = in.getInt();
+		if (count < 0)
+			throw new IOException("Snapshot is corrupt: count " + count);
+		if (in.remaining() < (long)count * bytesEach)
+			throw new IOException("Snapshot is truncated");
+		return count;
+	}
+
+	private static int readIndex(int index, int size) throws IOException {
+		if (index < 0 || index >= size)
+			throw new IOException("Snapshot is corrupt: index " + index + " of " + size);
+		return index;
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xffff];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
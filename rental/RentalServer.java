@@ -1,23 +1,38 @@
 package rental;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import remote.IAgency;
 import remote.ICarRentalCompany;
+import remote.ICarRentalReplica;
+import remote.ICompanyListener;
 import remote.IManagerSession;
 import shared.CarType;
+import shared.Reservation;
 import shared.ReservationException;
+import transport.NioTransport;
 
 public class RentalServer {
+	
+	// With -Drental.transport=nio the agency calls the companies over NioTransport instead of RMI.
+	// The registry only takes RMI stubs, so whatever is bound there is exported over RMI as well.
+	private static String transport = System.getProperty("rental.transport", "rmi");
 
 	public static void main(String[] args) throws ReservationException,
 			NumberFormatException, IOException, NotBoundException {
@@ -35,11 +50,51 @@ public class RentalServer {
 		
 		String hertzName = "Hertz";
 		String hertzNameInRegistry = "Company: Hertz";
-		ICarRentalCompany hertz = createCompanyRegister(hertzNameInRegistry, hertzName, "hertz.csv", registry);
-		
 		String dockxName = "Dockx";
 		String dockxNameInRegistry = "Company: Dockx";
-		ICarRentalCompany dockx = createCompanyRegister(dockxNameInRegistry, dockxName, "dockx.csv", registry);
+		
+		// A company can be spread over several servers by car type. With -Drental.shard=i/n this
+		// server only serves shard i of n, under "<name in registry> shard i", and leaves registering
+		// with the agency to the server started with -Drental.shards=n, once all shards are running.
+		String shard = System.getProperty("rental.shard");
+		int shards = Integer.getInteger("rental.shards", 0);
+		if (shard != null) {
+			int slash = shard.indexOf('/');
+			int index = Integer.parseInt(shard.substring(0, slash));
+			int count = Integer.parseInt(shard.substring(slash + 1));
+			if (index < 0 || index >= count)
+				throw new IllegalArgumentException("<" + shard + "> No shard " + index + " of " + count);
+			createCompanyRegister(hertzNameInRegistry + " shard " + index, hertzName, "hertz.csv", registry, index, count);
+			createCompanyRegister(dockxNameInRegistry + " shard " + index, dockxName, "dockx.csv", registry, index, count);
+			System.out.println("Shard " + index + " of " + count + " running.");
+			return;
+		}
+		
+		// With -Drental.replica=i this server runs read replicas of companies that are already
+		// running, under "<name in registry> replica i", and registers those with the agency.
+		String replica = System.getProperty("rental.replica");
+		if (replica != null) {
+			ICarRentalReplica hertzReplica = createReplicaRegister(hertzNameInRegistry, replica, registry);
+			ICarRentalReplica dockxReplica = createReplicaRegister(dockxNameInRegistry, replica, registry);
+			IAgency agency = (IAgency)registry.lookup(IAgency.DEFAULT_REMOTE_AGENCY_NAME);
+			IManagerSession ses = agency.startManagerSession("Hertz and Docks Manager Joe");
+			System.out.println("Registering replicas with agency...");
+			ses.registerCarRentalReplica(hertzReplica);
+			ses.registerCarRentalReplica(dockxReplica);
+			agency.endManagerSession(ses);
+			System.out.println("Replica " + replica + " running.");
+			return;
+		}
+		
+		ICarRentalCompany hertz;
+		ICarRentalCompany dockx;
+		if (shards > 0) {
+			hertz = createShardedCompanyRegister(hertzNameInRegistry, hertzName, shards, registry);
+			dockx = createShardedCompanyRegister(dockxNameInRegistry, dockxName, shards, registry);
+		} else {
+			hertz = createCompanyRegister(hertzNameInRegistry, hertzName, "hertz.csv", registry, 0, 1);
+			dockx = createCompanyRegister(dockxNameInRegistry, dockxName, "dockx.csv", registry, 0, 1);
+		}
 		
 		
 		// Get agency and register companies there
@@ -57,19 +112,113 @@ public class RentalServer {
 		System.out.println("All done.");
 	}
 	
-	private static ICarRentalCompany createCompanyRegister(String bindName, String compName, String dataFileName, Registry registry) throws NumberFormatException, ReservationException, IOException {
-		List<Car> cars = loadData(dataFileName);
-		CarRentalCompany crc = new CarRentalCompany(compName, cars); 
+	private static ICarRentalCompany createCompanyRegister(String bindName, String compName, String dataFileName, Registry registry,
+			int shard, int shards) throws NumberFormatException, ReservationException, IOException {
+		CarRentalCompany crc;
+		String journalDir = System.getProperty("rental.journalDir");
+		
+		// With -Drental.fleetFormat=binary the fleet is read from a snapshot made with FleetSnapshot,
+		// e.g. hertz.fleet instead of hertz.csv
+		if ("binary".equals(System.getProperty("rental.fleetFormat"))) {
+			File snapshotFile = new File(dataFileName.replaceFirst("\\.csv$", "") + ".fleet");
+			FleetSnapshot snapshot = FleetSnapshot.read(snapshotFile, compName);
+			crc = new CarRentalCompany(compName, shardOf(snapshot.getCars(), shard, shards));
+			useShard(crc, shard, shards);
+			// when journaling, the journal has the latest reservations
+			if (journalDir == null)
+				crc.restoreReservations(shardOf(snapshot.getReservations(), snapshot.getCars(), shard, shards));
+		} else {
+			List<Car> cars = loadData(dataFileName);
+			crc = new CarRentalCompany(compName, shardOf(cars, shard, shards)); 
+			useShard(crc, shard, shards);
+		}
+		
+		if (shards > 1 && journalDir != null)
+			journalDir = new File(journalDir, "shard-" + shard).getPath();
+		
+		// Reservations only survive a restart when a journal directory is given (-Drental.journalDir=...)
+		if (journalDir != null) {
+			int snapshotInterval = Integer.getInteger("rental.snapshotInterval", 10000);
+			crc.useJournal(new ReservationJournal(new File(journalDir), compName, snapshotInterval));
+		}
+		
 		ICarRentalCompany stub = (ICarRentalCompany) UnicastRemoteObject.exportObject(crc, 0);
 		registry.rebind(bindName, stub); //use rebind in case something with the same name already exists
 		
-		return stub;
+		return (ICarRentalCompany) getAgencyStub(crc, stub);
+	}
+
+	// Keeps reservation ids unique over all shards, before any reservation is restored
+	private static void useShard(CarRentalCompany crc, int shard, int shards) {
+		if (shards > 1)
+			crc.useShardPrefix(shard);
+	}
+
+	private static ICarRentalCompany createShardedCompanyRegister(String bindName, String compName, int shards, Registry registry) throws RemoteException, NotBoundException {
+		List<ICarRentalCompany> shardStubs = new ArrayList<ICarRentalCompany>();
+		for (int i = 0; i < shards; i++)
+			shardStubs.add((ICarRentalCompany) registry.lookup(bindName + " shard " + i));
+		
+		ShardedCarRentalCompany facade = new ShardedCarRentalCompany(compName, shardStubs);
+		ICarRentalCompany stub = (ICarRentalCompany) UnicastRemoteObject.exportObject(facade, 0);
+		facade.listenToShards((ICompanyListener) stub);
+		registry.rebind(bindName, stub);
+		
+		return (ICarRentalCompany) getAgencyStub(facade, stub);
+	}
+	
+	private static ICarRentalReplica createReplicaRegister(String primaryBindName, String replica, Registry registry) throws RemoteException, NotBoundException {
+		ICarRentalCompany primary = (ICarRentalCompany) registry.lookup(primaryBindName);
+		ReplicaCarRentalCompany copy = new ReplicaCarRentalCompany(primary);
+		ICarRentalReplica stub = (ICarRentalReplica) UnicastRemoteObject.exportObject(copy, 0);
+		registry.rebind(primaryBindName + " replica " + replica, stub);
+		return (ICarRentalReplica) getAgencyStub(copy, stub);
+	}
+	
+	// The stub to register with the agency, over the configured transport
+	private static Remote getAgencyStub(Remote obj, Remote rmiStub) throws RemoteException {
+		return "nio".equals(transport) ? NioTransport.exportObject(obj) : rmiStub;
+	}
+	
+	/**
+	 * The cars of the given shard: those whose car type is the shard's, counting car types
+	 * in the order they first appear in the fleet.
+	 */
+	static List<Car> shardOf(List<Car> cars, int shard, int shards) {
+		if (shards <= 1)
+			return cars;
+		Map<CarType, Integer> types = new HashMap<CarType, Integer>();
+		List<Car> shardCars = new ArrayList<Car>();
+		for (Car car : cars) {
+			Integer type = types.get(car.getType());
+			if (type == null) {
+				type = types.size();
+				types.put(car.getType(), type);
+			}
+			if (type % shards == shard)
+				shardCars.add(car);
+		}
+		return shardCars;
+	}
+	
+	private static List<Reservation> shardOf(List<Reservation> reservations, List<Car> cars, int shard, int shards) {
+		if (shards <= 1)
+			return reservations;
+		Set<String> shardTypes = new HashSet<String>();
+		for (Car car : shardOf(cars, shard, shards))
+			shardTypes.add(car.getType().getName());
+		List<Reservation> shardReservations = new ArrayList<Reservation>();
+		for (Reservation res : reservations) {
+			if (shardTypes.contains(res.getCarType()))
+				shardReservations.add(res);
+		}
+		return shardReservations;
 	}
 
 	public static List<Car> loadData(String dataFileName)
 			throws ReservationException, NumberFormatException, IOException {
 
-		List<Car> cars = new LinkedList<Car>();
+		List<Car> cars = new ArrayList<Car>();
 
 		int nextuid = 0;
 
@@ -0,0 +1,299 @@
+package rental;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import remote.IBookingSource;
+import remote.ICarRentalCompany;
+import remote.ICarRentalReplica;
+import remote.ICompanyListener;
+import shared.BookingChanges;
+import shared.BookingSnapshot;
+import shared.CarType;
+import shared.CarTypeCatalog;
+import shared.CarTypeSelection;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationConstraints;
+import shared.ReservationException;
+
+/**
+ * A read-only copy of a CarRentalCompany in another JVM, to spread the load of
+ * availability queries over several servers (see RentalServer, -Drental.replica).
+ *
+ * The replica starts from a snapshot of the company, and from then on asks it for its
+ * latest bookings every -Drental.replicaPollMillis. Queries are answered from the copy,
+ * so they may miss the bookings of the last poll, see getLagMillis. Everything that
+ * books or cancels is passed on to the company itself, and so are listeners.
+ */
+public class ReplicaCarRentalCompany implements ICarRentalReplica {
+
+	private static Logger logger = Logger.getLogger(ReplicaCarRentalCompany.class.getName());
+
+	// One thread keeps all replicas in this JVM up to date
+	private static final ScheduledExecutorService SYNC = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "replica-sync");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private String name;
+	private ICarRentalCompany primary;
+	private IBookingSource source;
+	// Replaced as a whole when the replica starts over from a snapshot
+	private volatile Copy copy;
+	// When the last poll that got all of the company's bookings was sent, in epoch millis
+	private volatile long upToDateAt;
+	private int batchSize = Integer.getInteger("rental.replicaBatchSize", 10000);
+
+	/***************
+	 * CONSTRUCTOR *
+	 ***************/
+
+	/**
+	 * @param primary the stub of the CarRentalCompany to follow
+	 * @throws IllegalArgumentException if the company can't be followed, e.g. because it's sharded
+	 */
+	public ReplicaCarRentalCompany(ICarRentalCompany primary) throws RemoteException {
+		if (!(primary instanceof IBookingSource))
+			throw new IllegalArgumentException("<" + primary.getName() + "> Company can't be replicated");
+		this.name = primary.getName();
+		this.primary = primary;
+		this.source = (IBookingSource) primary;
+		logger.log(Level.INFO, "<{0}> Replica of {0} starting up...", name);
+		resync(System.currentTimeMillis());
+
+		long period = Long.getLong("rental.replicaPollMillis", 100);
+		SYNC.scheduleWithFixedDelay(this::poll, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	// The copy of the company, and the changes of it that were applied
+	private static class Copy {
+		final CarRentalCompany company;
+		final CarTypeCatalog catalog;
+		final long logId;
+		long sequence;
+
+		Copy(CarRentalCompany company, CarTypeCatalog catalog, long logId, long sequence) {
+			this.company = company;
+			this.catalog = catalog;
+			this.logId = logId;
+			this.sequence = sequence;
+		}
+	}
+
+	private void resync(long sentAt) throws RemoteException {
+		BookingSnapshot snapshot = source.getBookingSnapshot();
+		CarTypeCatalog catalog = snapshot.getCatalog();
+		int[] carTypeIds = snapshot.getCarTypeIds();
+		// Cars by car type in the company's catalog order, so the copy gives them the same ids
+		List<List<Car>> carsByType = new ArrayList<List<Car>>();
+		for (int id = 0; id < catalog.getCarTypes().size(); id++)
+			carsByType.add(new ArrayList<Car>());
+		for (int uid = 0; uid < carTypeIds.length; uid++) {
+			if (carTypeIds[uid] >= 0)
+				carsByType.get(carTypeIds[uid]).add(new Car(uid, catalog.getCarType(carTypeIds[uid])));
+		}
+		List<Car> cars = new ArrayList<Car>();
+		for (List<Car> typeCars : carsByType)
+			cars.addAll(typeCars);
+
+		CarRentalCompany company = new CarRentalCompany(name, cars);
+		company.restoreReservations(snapshot.getReservations());
+		copy = new Copy(company, catalog, snapshot.getLogId(), snapshot.getSequence());
+		upToDateAt = sentAt;
+		logger.log(Level.INFO, "<{0}> Replica copied {1} cars and {2} reservations",
+				new Object[]{name, cars.size(), snapshot.getReservations().size()});
+	}
+
+	// Only on the sync thread
+	private void poll() {
+		try {
+			long sentAt = System.currentTimeMillis();
+			Copy current = copy;
+			BookingChanges changes;
+			do {
+				changes = source.getBookingChangesSince(current.logId, current.sequence, batchSize);
+				if (changes == null) {
+					// the company restarted, added cars or is too far ahead
+					resync(sentAt);
+					return;
+				}
+				current.company.applyBookingChanges(changes);
+				current.sequence = changes.getSequence();
+			} while (!changes.isLatest());
+			upToDateAt = sentAt;
+		} catch (RemoteException e) {
+			logger.log(Level.WARNING, "<" + name + "> Replica can't reach the company", e);
+		} catch (RuntimeException e) {
+			// a failing task isn't run again, so keep it going
+			logger.log(Level.SEVERE, "<" + name + "> Replica could not apply the company's changes", e);
+		}
+	}
+
+	/**
+	 * How long ago the replica last had all of the company's bookings. It may miss
+	 * those made since, but no older ones.
+	 */
+	@Override
+	public long getLagMillis() {
+		return Math.max(0, System.currentTimeMillis() - upToDateAt);
+	}
+
+	/********
+	 * NAME *
+	 ********/
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String hello() throws RemoteException {
+		return "Hi, I'm a copy of a car rental company. My name is " + getName();
+	}
+
+	/*************
+	 * CAR TYPES *
+	 *************/
+
+	@Override
+	public Collection<CarType> getAllCarTypes() {
+		return copy.catalog.getCarTypes();
+	}
+
+	@Override
+	public CarType getCarType(String carTypeName) {
+		return copy.company.getCarType(carTypeName);
+	}
+
+	@Override
+	public boolean isAvailable(String carTypeName, Date start, Date end) {
+		return copy.company.isAvailable(carTypeName, start, end);
+	}
+
+	@Override
+	public Set<CarType> getAvailableCarTypes(Date start, Date end) {
+		return copy.company.getAvailableCarTypes(start, end);
+	}
+
+	// The company's catalog rather than the copy's, which has the same ids but its own version
+	@Override
+	public CarTypeCatalog getCatalog() {
+		return copy.catalog;
+	}
+
+	@Override
+	public CarTypeSelection getAvailableCarTypeIds(Date start, Date end) {
+		Copy current = copy;
+		CarTypeSelection selection = current.company.getAvailableCarTypeIds(start, end);
+		return new CarTypeSelection(current.catalog.getVersion(), selection.getIds());
+	}
+
+	/*************
+	 * LISTENERS *
+	 *************/
+
+	@Override
+	public void addListener(ICompanyListener listener) throws RemoteException {
+		primary.addListener(listener);
+	}
+
+	@Override
+	public void removeListener(ICompanyListener listener) throws RemoteException {
+		primary.removeListener(listener);
+	}
+
+	/****************
+	 * RESERVATIONS *
+	 ****************/
+
+	@Override
+	public Quote createQuote(ReservationConstraints constraints, String client)
+			throws ReservationException, RemoteException {
+		return primary.createQuote(constraints, client);
+	}
+
+	@Override
+	public Reservation confirmQuote(Quote quote) throws ReservationException, RemoteException {
+		return primary.confirmQuote(quote);
+	}
+
+	@Override
+	public void cancelReservation(Reservation res) throws RemoteException {
+		primary.cancelReservation(res);
+	}
+
+	/*******************
+	 * BATCH RESERVING *
+	 *******************/
+
+	@Override
+	public List<Quote> createQuotes(List<ReservationConstraints> constraints, String client)
+			throws ReservationException, RemoteException {
+		return primary.createQuotes(constraints, client);
+	}
+
+	@Override
+	public List<Reservation> confirmQuotes(List<Quote> quotes) throws ReservationException, RemoteException {
+		return primary.confirmQuotes(quotes);
+	}
+
+	@Override
+	public void cancelReservations(List<Reservation> reservations) throws RemoteException {
+		primary.cancelReservations(reservations);
+	}
+
+	/***********************
+	 * TWO-PHASE RESERVING *
+	 ***********************/
+
+	@Override
+	public long prepareQuotes(List<Quote> quotes) throws ReservationException, RemoteException {
+		return primary.prepareQuotes(quotes);
+	}
+
+	@Override
+	public List<Reservation> commitHold(long holdId) throws ReservationException, RemoteException {
+		return primary.commitHold(holdId);
+	}
+
+	@Override
+	public void abortHold(long holdId) throws RemoteException {
+		primary.abortHold(holdId);
+	}
+
+	/***********************
+	 * RESERVATION QUERIES *
+	 ***********************/
+
+	@Override
+	public List<Reservation> getReservationsByRenter(String clientName) throws RemoteException {
+		return copy.company.getReservationsByRenter(clientName);
+	}
+
+	@Override
+	public int getNumberOfReservationsForTypeByName(String carType) throws RemoteException {
+		return copy.company.getNumberOfReservationsForTypeByName(carType);
+	}
+
+	@Override
+	public int getNumberOfReservationsBy(String renter) throws RemoteException {
+		return copy.company.getNumberOfReservationsBy(renter);
+	}
+
+	@Override
+	public int getTotalNumberOfReservations() throws RemoteException {
+		return copy.company.getTotalNumberOfReservations();
+	}
+}
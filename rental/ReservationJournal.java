@@ -0,0 +1,507 @@
+package rental;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import shared.Quote;
+import shared.Reservation;
+
+/**
+ * Write-ahead journal of the confirmed and cancelled reservations of one company.
+ *
+ * Events are appended to the current journal file, and callers wait until their
+ * event is on disk. A single writer thread takes everything that was appended
+ * since its last write and forces it to disk in one go (group commit), so
+ * concurrent bookings share fsyncs instead of waiting for each other's.
+ *
+ * A batch that can't be written is cut off the journal file again and written once
+ * more. If that fails too, only the callers of that batch get the failure, and the
+ * journal carries on with the next one. Only when the file can't even be cut back
+ * is the journal broken for good, see isBroken.
+ *
+ * Every so many events the writer moves on to a new journal file and a snapshot
+ * of all live reservations is written in the background. The snapshot is made from
+ * the previous one and the journal files it's replacing, the way recovery reads them,
+ * rather than from the company, so it only holds what was journaled. Journal files
+ * older than the latest snapshot are deleted, so recovery never has to replay more
+ * than the last few files.
+ *
+ * Files in the journal directory, for a company named C:
+ *   C.<generation>.journal	events, each as [length][crc32][payload]
+ *   C.snapshot			the first generation to replay after it, and the live reservations
+ *				in the format of a {@link FleetSnapshot}
+ */
+public class ReservationJournal implements Closeable {
+
+	private static Logger logger = Logger.getLogger(ReservationJournal.class.getName());
+
+	private static final byte CONFIRM = 1;
+	private static final byte CANCEL = 2;
+	private static final int MAX_RECORD_LENGTH = 1 << 16;
+	private static final int SNAPSHOT_MAGIC = 0x52534e50; // "RSNP"
+	private static final int SNAPSHOT_VERSION = 2;
+
+	private File dir;
+	private String company;
+	private int snapshotInterval;
+	private ExecutorService snapshotter;
+
+	// Only used by the writer thread (and open/recover before it starts)
+	private long generation;
+	private FileChannel channel;
+	// What's on disk of the current file, so a failed write can be cut off again
+	private long generationSize;
+	private int eventsInGeneration = 0;
+
+	// Group commit state, guarded by this: the events appended since the writer took the
+	// last batch, and the batch their callers wait for
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private Batch pendingBatch = new Batch();
+	// Set once the journal is broken, see isBroken
+	private IOException failure;
+	private boolean closed = false;
+
+	private Thread writer;
+
+	/**
+	 * The events written to disk with a single fsync, guarded by the journal.
+	 */
+	private static class Batch {
+		int events;
+		boolean done;
+		// Why it isn't on disk, if done
+		IOException failure;
+	}
+
+	/***************
+	 * CONSTRUCTOR *
+	 ***************/
+
+	/**
+	 * Opens (or creates) the journal of the given company in the given directory.
+	 * Call {@link #recover()} and then {@link #start()} before logging events.
+	 *
+	 * @param snapshotInterval number of events after which a new snapshot is taken
+	 */
+	public ReservationJournal(File dir, String company, int snapshotInterval) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create journal directory " + dir);
+		this.dir = dir;
+		this.company = company;
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	/************
+	 * RECOVERY *
+	 ************/
+
+	/**
+	 * Reads the latest snapshot and replays all journal files written after it.
+	 * A torn record at the end of a journal file (from a crash mid-write) ends the replay of that file.
+	 *
+	 * @return all reservations that were live when the journal was last written, by id
+	 */
+	public Map<Long, Reservation> recover() throws IOException {
+		Map<Long, Reservation> live = new LinkedHashMap<Long, Reservation>();
+		long firstGeneration = readSnapshot(live);
+
+		TreeMap<Long, File> journals = getJournalFiles();
+		for (Map.Entry<Long, File> journal : journals.tailMap(firstGeneration).entrySet()) {
+			replay(journal.getValue(), live);
+		}
+
+		generation = journals.isEmpty() ? firstGeneration : Math.max(firstGeneration, journals.lastKey() + 1);
+		logger.log(Level.INFO, "<{0}> Recovered {1} reservations from journal", new Object[]{company, live.size()});
+		return live;
+	}
+
+	// Reads the latest snapshot, if any, into the given map and returns the first generation to replay after it
+	private long readSnapshot(Map<Long, Reservation> live) throws IOException {
+		File snapshot = getSnapshotFile();
+		if (!snapshot.exists())
+			return 0;
+		ByteBuffer in = FleetSnapshot.map(snapshot);
+		if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION)
+			throw new IOException("Unknown snapshot format in " + snapshot);
+		long firstGeneration = in.getLong();
+		for (Reservation res : FleetSnapshot.readReservations(in, company))
+			live.put(res.getId(), res);
+		return firstGeneration;
+	}
+
+	private void replay(File journal, Map<Long, Reservation> live) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+		try {
+			while (true) {
+				byte[] payload;
+				try {
+					int length = in.readInt();
+					int crc = in.readInt();
+					if (length <= 0 || length > MAX_RECORD_LENGTH) {
+						logger.log(Level.WARNING, "<{0}> Corrupt record in {1}, ignoring the rest of it", new Object[]{company, journal});
+						return;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+					if (crc != checksum(payload, 0, length)) {
+						logger.log(Level.WARNING, "<{0}> Corrupt record in {1}, ignoring the rest of it", new Object[]{company, journal});
+						return;
+					}
+				} catch (EOFException e) {
+					return; // end of file, or a record that was only partly written
+				}
+
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				byte type = record.readByte();
+				if (type == CONFIRM) {
+					Reservation res = readReservation(record);
+					live.put(res.getId(), res);
+				} else if (type == CANCEL) {
+					live.remove(record.readLong());
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/***********
+	 * LOGGING *
+	 ***********/
+
+	/**
+	 * Starts writing to a new journal file.
+	 */
+	public synchronized void start() throws IOException {
+		openGeneration();
+		snapshotter = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Snapshots " + company);
+			t.setDaemon(true);
+			return t;
+		});
+		writer = new Thread(this::writeLoop, "Journal " + company);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Appends the confirmed reservations and returns once they're on disk.
+	 */
+	public void logConfirmed(Collection<Reservation> reservations) throws IOException {
+		List<byte[]> payloads = new ArrayList<byte[]>(reservations.size());
+		for (Reservation res : reservations) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(CONFIRM);
+			writeReservation(out, res);
+			payloads.add(bytes.toByteArray());
+		}
+		awaitDurable(append(payloads));
+	}
+
+	/**
+	 * Appends the cancelled reservations and returns once they're on disk.
+	 */
+	public void logCancelled(Collection<Reservation> reservations) throws IOException {
+		List<byte[]> payloads = new ArrayList<byte[]>(reservations.size());
+		for (Reservation res : reservations) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(CANCEL);
+			out.writeLong(res.getId());
+			payloads.add(bytes.toByteArray());
+		}
+		awaitDurable(append(payloads));
+	}
+
+	// All in the same batch, so they're written or not as a whole
+	private synchronized Batch append(List<byte[]> payloads) throws IOException {
+		if (closed)
+			throw new IOException("Journal of " + company + " is closed");
+		if (failure != null)
+			throw failure;
+		DataOutputStream out = new DataOutputStream(pending);
+		for (byte[] payload : payloads) {
+			out.writeInt(payload.length);
+			out.writeInt(checksum(payload, 0, payload.length));
+			out.write(payload);
+		}
+		pendingBatch.events += payloads.size();
+		notifyAll();
+		return pendingBatch;
+	}
+
+	private synchronized void awaitDurable(Batch batch) throws IOException {
+		try {
+			while (!batch.done && failure == null)
+				wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the journal of " + company);
+		}
+		if (!batch.done)
+			throw failure;
+		if (batch.failure != null)
+			throw batch.failure;
+	}
+
+	/**
+	 * True once the journal can't be written anymore, after a write failed and the
+	 * journal file couldn't be cut back to what was on disk before it. Nothing can be
+	 * logged from then on.
+	 */
+	public synchronized boolean isBroken() {
+		return failure != null;
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				byte[] bytes;
+				Batch batch;
+				synchronized (this) {
+					while (pending.size() == 0 && !closed)
+						wait();
+					if (pending.size() == 0)
+						return;
+					bytes = pending.toByteArray();
+					batch = pendingBatch;
+					pending.reset();
+					pendingBatch = new Batch();
+				}
+
+				// Everyone who appended while the previous batch was being forced shares this fsync
+				IOException error = null;
+				try {
+					write(channel, ByteBuffer.wrap(bytes));
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "<" + company + "> Writing the journal failed, trying once more", e);
+					reopenGeneration();
+					try {
+						write(channel, ByteBuffer.wrap(bytes));
+					} catch (IOException again) {
+						logger.log(Level.SEVERE, "<" + company + "> Writing the journal failed", again);
+						reopenGeneration();
+						error = again;
+					}
+				}
+
+				synchronized (this) {
+					batch.done = true;
+					batch.failure = error;
+					notifyAll();
+				}
+
+				if (error == null) {
+					generationSize += bytes.length;
+					eventsInGeneration += batch.events;
+					if (eventsInGeneration >= snapshotInterval)
+						rollOver();
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "<" + company + "> The journal is broken, nothing can be stored anymore", e);
+			synchronized (this) {
+				failure = e;
+				notifyAll();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes a batch to the end of the current journal file and forces it to disk.
+	 * Overridden to inject faults, see client.JournalFaults.
+	 */
+	protected void write(FileChannel channel, ByteBuffer batch) throws IOException {
+		while (batch.hasRemaining())
+			channel.write(batch);
+		channel.force(false);
+	}
+
+	/*************
+	 * SNAPSHOTS *
+	 *************/
+
+	// Runs on the writer thread, so no events are written while switching files
+	private void rollOver() throws IOException {
+		channel.close();
+		generation++;
+		openGeneration();
+
+		// The older files aren't written anymore, so they can be read while new events
+		// go to the new one
+		final long snapshotGeneration = generation;
+		snapshotter.execute(() -> {
+			try {
+				writeSnapshot(snapshotGeneration);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "<" + company + "> Taking a snapshot failed", e);
+			}
+		});
+	}
+
+	/**
+	 * Replays the journal files before the given generation onto the latest snapshot,
+	 * like recovery, and writes the result as the new snapshot. Events that were never
+	 * acknowledged aren't in those files, see writeLoop, so neither are they in the
+	 * snapshot, whatever the company had in memory at the time.
+	 */
+	private void writeSnapshot(long firstGeneration) throws IOException {
+		Map<Long, Reservation> live = new LinkedHashMap<Long, Reservation>();
+		long replayFrom = readSnapshot(live);
+		for (File journal : getJournalFiles().subMap(replayFrom, firstGeneration).values())
+			replay(journal, live);
+		Collection<Reservation> reservations = live.values();
+
+		File tmp = new File(dir, company + ".snapshot.tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(firstGeneration);
+			FleetSnapshot.writeReservations(out, reservations);
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+		Files.move(tmp.toPath(), getSnapshotFile().toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		for (File old : getJournalFiles().headMap(firstGeneration).values()) {
+			if (!old.delete())
+				logger.log(Level.WARNING, "<{0}> Could not delete old journal {1}", new Object[]{company, old});
+		}
+		logger.log(Level.INFO, "<{0}> Snapshot of {1} reservations written", new Object[]{company, reservations.size()});
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			if (writer != null)
+				writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (snapshotter != null)
+			snapshotter.shutdown();
+		if (channel != null)
+			channel.close();
+	}
+
+	/*********
+	 * FILES *
+	 *********/
+
+	private void openGeneration() throws IOException {
+		channel = openJournalFile();
+		generationSize = channel.size();
+		eventsInGeneration = 0;
+	}
+
+	// After a failed write: cuts the current file back to what was on disk before it.
+	// The old channel may have been closed by the failure, so it's reopened.
+	private void reopenGeneration() throws IOException {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// reopened anyway
+		}
+		channel = openJournalFile();
+		channel.truncate(generationSize);
+		channel.force(true);
+	}
+
+	private FileChannel openJournalFile() throws IOException {
+		return FileChannel.open(new File(dir, company + "." + generation + ".journal").toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private File getSnapshotFile() {
+		return new File(dir, company + ".snapshot");
+	}
+
+	private TreeMap<Long, File> getJournalFiles() {
+		TreeMap<Long, File> journals = new TreeMap<Long, File>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			return journals;
+		String prefix = company + ".";
+		for (File file : files) {
+			String fileName = file.getName();
+			if (!fileName.startsWith(prefix) || !fileName.endsWith(".journal"))
+				continue;
+			String gen = fileName.substring(prefix.length(), fileName.length() - ".journal".length());
+			try {
+				journals.put(Long.parseLong(gen), file);
+			} catch (NumberFormatException e) {
+				// not one of ours
+			}
+		}
+		return journals;
+	}
+
+	/************
+	 * ENCODING *
+	 ************/
+
+	private void writeReservation(DataOutputStream out, Reservation res) throws IOException {
+		out.writeLong(res.getId());
+		out.writeInt(res.getCarId());
+		out.writeUTF(res.getCarRenter());
+		out.writeUTF(res.getCarType());
+		out.writeLong(res.getStartTime());
+		out.writeLong(res.getEndTime());
+		out.writeDouble(res.getRentalPrice());
+	}
+
+	private Reservation readReservation(DataInputStream in) throws IOException {
+		long id = in.readLong();
+		int carId = in.readInt();
+		String renter = in.readUTF();
+		String carType = in.readUTF();
+		long start = in.readLong();
+		long end = in.readLong();
+		double price = in.readDouble();
+		return new Reservation(new Quote(renter, start, end, company, carType, price), carId, id);
+	}
+
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int)crc.getValue();
+	}
+}
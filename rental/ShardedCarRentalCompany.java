@@ -0,0 +1,554 @@
+package rental;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import remote.ICarRentalCompany;
+import remote.ICompanyListener;
+import shared.AvailabilityChange;
+import shared.CarType;
+import shared.CarTypeCatalog;
+import shared.CarTypeSelection;
+import shared.Quote;
+import shared.Reservation;
+import shared.ReservationConstraints;
+import shared.ReservationException;
+import shared.ReservationList;
+
+/**
+ * A company whose fleet is split over several servers by car type. Every shard is a
+ * CarRentalCompany of the same name with some of the car types (see RentalServer,
+ * -Drental.shard), and this facade looks like a single company to the agency.
+ *
+ * Anything about a single car type goes to the shard that has it. Anything about the
+ * whole company asks all shards at once and merges their answers. Confirming quotes
+ * of several shards prepares them at every shard first, so a batch is still booked
+ * as a whole.
+ *
+ * The facade listens to its shards itself, and passes their changes on to its own
+ * listeners. Export it, then call listenToShards with its stub.
+ */
+public class ShardedCarRentalCompany implements ICarRentalCompany, ICompanyListener {
+
+	private static Logger logger = Logger.getLogger(ShardedCarRentalCompany.class.getName());
+
+	// Calls to several shards at once run on these threads
+	private static final ExecutorService SHARD_CALLS = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "shard-calls");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private String name;
+	private List<ICarRentalCompany> shards;
+	// Replaced as a whole when shards add car types, see refreshCatalogs
+	private volatile Map<String,ICarRentalCompany> shardsByType = new HashMap<String, ICarRentalCompany>();
+	private volatile List<CarTypeCatalog> shardCatalogs;
+	// The car types of all shards, in the order they were found, so their ids never change
+	private List<CarType> catalogTypes = new ArrayList<CarType>();
+	private volatile CarTypeCatalog catalog;
+	private List<ICompanyListener> listeners = new CopyOnWriteArrayList<ICompanyListener>();
+	private ConcurrentMap<Long,ShardHold> holds = new ConcurrentHashMap<Long, ShardHold>();
+	private AtomicLong nextHoldId = new AtomicLong();
+	// Holds the shards haven't committed by then, they have aborted themselves
+	private long holdTimeoutMillis = Long.getLong("rental.holdTimeoutMillis", 10000);
+
+	/***************
+	 * CONSTRUCTOR *
+	 ***************/
+
+	public ShardedCarRentalCompany(String name, List<ICarRentalCompany> shards) throws RemoteException {
+		logger.log(Level.INFO, "<{0}> Sharded Car Rental Company {0} starting up with {1} shards...", new Object[]{name, shards.size()});
+		this.name = name;
+		this.shards = new ArrayList<ICarRentalCompany>(shards);
+		refreshCatalogs();
+	}
+
+	/**
+	 * Registers the facade with all its shards, so it hears about their changes.
+	 *
+	 * @param self the exported stub of this facade
+	 */
+	public void listenToShards(ICompanyListener self) throws RemoteException {
+		for (ICarRentalCompany shard : shards)
+			shard.addListener(self);
+		// a shard may have changed before the facade was listening
+		if (refreshCatalogs())
+			notifyCatalogChanged();
+	}
+
+	/**
+	 * Finds out which shard has which car types. Car types new to the facade get the
+	 * next ids in its catalog.
+	 *
+	 * @return whether the catalog of the facade changed
+	 */
+	private synchronized boolean refreshCatalogs() throws RemoteException {
+		Map<String,ICarRentalCompany> byType = new HashMap<String, ICarRentalCompany>(shardsByType);
+		List<CarTypeCatalog> catalogs = new ArrayList<CarTypeCatalog>();
+		boolean changed = false;
+		for (ICarRentalCompany shard : shards) {
+			CarTypeCatalog shardCatalog = shard.getCatalog();
+			catalogs.add(shardCatalog);
+			for (CarType type : shardCatalog.getCarTypes()) {
+				if (!byType.containsKey(type.getName())) {
+					byType.put(type.getName(), shard);
+					catalogTypes.add(type);
+					changed = true;
+				}
+			}
+		}
+		shardCatalogs = catalogs;
+		shardsByType = byType;
+		if (changed || catalog == null)
+			catalog = new CarTypeCatalog(name, catalog == null ? 1 : catalog.getVersion() + 1, catalogTypes);
+		return changed;
+	}
+
+	private ICarRentalCompany getShard(String carTypeName) {
+		ICarRentalCompany shard = shardsByType.get(carTypeName);
+		if (shard == null)
+			throw new IllegalArgumentException("<" + carTypeName + "> No car type of name " + carTypeName);
+		return shard;
+	}
+
+	/********
+	 * NAME *
+	 ********/
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String hello() throws RemoteException {
+		return "Hi, I'm a car rental company spread over " + shards.size() + " servers. My name is " + getName();
+	}
+
+	/*************
+	 * CAR TYPES *
+	 *************/
+
+	@Override
+	public Collection<CarType> getAllCarTypes() {
+		return catalog.getCarTypes();
+	}
+
+	@Override
+	public CarType getCarType(String carTypeName) {
+		CarTypeCatalog current = catalog;
+		int id = current.getId(carTypeName);
+		if (id < 0)
+			throw new IllegalArgumentException("<" + carTypeName + "> No car type of name " + carTypeName);
+		return current.getCarType(id);
+	}
+
+	@Override
+	public boolean isAvailable(String carTypeName, Date start, Date end) throws RemoteException {
+		return getShard(carTypeName).isAvailable(carTypeName, start, end);
+	}
+
+	@Override
+	public Set<CarType> getAvailableCarTypes(Date start, Date end) throws RemoteException {
+		Set<CarType> availableCarTypes = new HashSet<CarType>();
+		for (Set<CarType> shardTypes : readShards(shards, shard -> shard.getAvailableCarTypes(start, end)))
+			availableCarTypes.addAll(shardTypes);
+		return availableCarTypes;
+	}
+
+	@Override
+	public CarTypeCatalog getCatalog() {
+		return catalog;
+	}
+
+	@Override
+	public CarTypeSelection getAvailableCarTypeIds(Date start, Date end) throws RemoteException {
+		List<CarTypeSelection> selections = readShards(shards, shard -> shard.getAvailableCarTypeIds(start, end));
+		List<CarTypeCatalog> catalogs = shardCatalogs;
+		for (int i = 0; i < selections.size(); i++) {
+			if (selections.get(i).getCatalogVersion() > catalogs.get(i).getVersion()) {
+				// the shard's change hasn't reached the facade yet
+				if (refreshCatalogs())
+					notifyCatalogChanged();
+				catalogs = shardCatalogs;
+				break;
+			}
+		}
+
+		CarTypeCatalog current = catalog;
+		BitSet ids = new BitSet();
+		for (int i = 0; i < selections.size(); i++) {
+			for (CarType type : catalogs.get(i).resolve(selections.get(i)))
+				ids.set(current.getId(type.getName()));
+		}
+		return new CarTypeSelection(current.getVersion(), ids);
+	}
+
+	/*************
+	 * LISTENERS *
+	 *************/
+
+	@Override
+	public void addListener(ICompanyListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(ICompanyListener listener) {
+		listeners.remove(listener);
+	}
+
+	// A shard has new car types
+	@Override
+	public void catalogChanged(CarTypeCatalog shardCatalog) throws RemoteException {
+		if (refreshCatalogs())
+			notifyCatalogChanged();
+	}
+
+	// Changes of the shards are changes of the facade as well
+	@Override
+	public void availabilityChanged(String company, List<AvailabilityChange> changes) {
+		for (ICompanyListener listener : listeners) {
+			try {
+				listener.availabilityChanged(name, changes);
+			} catch (RemoteException e) {
+				logger.log(Level.WARNING, "<" + name + "> Dropping a listener that can't be reached", e);
+				listeners.remove(listener);
+			}
+		}
+	}
+
+	private void notifyCatalogChanged() {
+		CarTypeCatalog changed = catalog;
+		for (ICompanyListener listener : listeners) {
+			try {
+				listener.catalogChanged(changed);
+			} catch (RemoteException e) {
+				logger.log(Level.WARNING, "<" + name + "> Dropping a listener that can't be reached", e);
+				listeners.remove(listener);
+			}
+		}
+	}
+
+	/****************
+	 * RESERVATIONS *
+	 ****************/
+
+	@Override
+	public Quote createQuote(ReservationConstraints constraints, String client)
+			throws ReservationException, RemoteException {
+		return getShard(constraints.getCarType()).createQuote(constraints, client);
+	}
+
+	@Override
+	public Reservation confirmQuote(Quote quote) throws ReservationException, RemoteException {
+		return getShard(quote.getCarType()).confirmQuote(quote);
+	}
+
+	@Override
+	public void cancelReservation(Reservation res) throws RemoteException {
+		getShard(res.getCarType()).cancelReservation(res);
+	}
+
+	/*******************
+	 * BATCH RESERVING *
+	 *******************/
+
+	@Override
+	public List<Quote> createQuotes(List<ReservationConstraints> constraints, String client)
+			throws ReservationException, RemoteException {
+		List<String> carTypes = new ArrayList<String>(constraints.size());
+		for (ReservationConstraints c : constraints)
+			carTypes.add(c.getCarType());
+		Map<ICarRentalCompany,List<Integer>> byShard = groupByShard(carTypes);
+
+		List<List<Quote>> answers = callShards(new ArrayList<ICarRentalCompany>(byShard.keySet()),
+				shard -> shard.createQuotes(select(constraints, byShard.get(shard)), client));
+		return merge(byShard, answers, constraints.size());
+	}
+
+	/**
+	 * Books all quotes or none of them. Quotes for a single shard are simply confirmed
+	 * there. Otherwise every shard involved holds its cars first, and the holds are
+	 * only committed once all of them succeeded.
+	 */
+	@Override
+	public List<Reservation> confirmQuotes(List<Quote> quotes) throws ReservationException, RemoteException {
+		Map<ICarRentalCompany,List<Integer>> byShard = groupByShard(carTypesOf(quotes));
+		if (byShard.size() == 1) {
+			ICarRentalCompany shard = byShard.keySet().iterator().next();
+			return shard.confirmQuotes(quotes);
+		}
+		return commitHold(prepareQuotes(quotes));
+	}
+
+	@Override
+	public void cancelReservations(List<Reservation> reservations) throws RemoteException {
+		Map<ICarRentalCompany,List<Integer>> byShard = groupByShard(carTypesOf(reservations));
+		readShards(new ArrayList<ICarRentalCompany>(byShard.keySet()), shard -> {
+			shard.cancelReservations(select(reservations, byShard.get(shard)));
+			return null;
+		});
+	}
+
+	/***********************
+	 * TWO-PHASE RESERVING *
+	 ***********************/
+
+	@Override
+	public long prepareQuotes(List<Quote> quotes) throws ReservationException, RemoteException {
+		purgeHolds();
+		Map<ICarRentalCompany,List<Integer>> byShard = groupByShard(carTypesOf(quotes));
+		List<ICarRentalCompany> involved = new ArrayList<ICarRentalCompany>(byShard.keySet());
+
+		// Every shard is asked, even when one of them fails, so they can all be aborted
+		List<Future<Long>> prepares = new ArrayList<Future<Long>>();
+		for (ICarRentalCompany shard : involved) {
+			List<Quote> shardQuotes = select(quotes, byShard.get(shard));
+			prepares.add(SHARD_CALLS.submit(() -> shard.prepareQuotes(shardQuotes)));
+		}
+		Map<ICarRentalCompany,Long> shardHolds = new LinkedHashMap<ICarRentalCompany, Long>();
+		Exception failure = null;
+		for (int i = 0; i < involved.size(); i++) {
+			try {
+				shardHolds.put(involved.get(i), await(prepares.get(i)));
+			} catch (ReservationException | RemoteException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+
+		if (failure != null) {
+			abortAll(shardHolds);
+			if (failure instanceof ReservationException)
+				throw (ReservationException) failure;
+			throw (RemoteException) failure;
+		}
+		long id = nextHoldId.getAndIncrement();
+		holds.put(id, new ShardHold(byShard, shardHolds, quotes.size()));
+		return id;
+	}
+
+	@Override
+	public List<Reservation> commitHold(long holdId) throws ReservationException, RemoteException {
+		ShardHold hold = holds.remove(holdId);
+		if (hold == null)
+			throw new ReservationException("<" + name + "> Reservation failed, hold " + holdId + " expired or was aborted.");
+
+		List<ICarRentalCompany> involved = new ArrayList<ICarRentalCompany>(hold.shardHolds.keySet());
+		List<Future<List<Reservation>>> commits = new ArrayList<Future<List<Reservation>>>();
+		for (ICarRentalCompany shard : involved) {
+			long shardHold = hold.shardHolds.get(shard);
+			commits.add(SHARD_CALLS.submit(() -> shard.commitHold(shardHold)));
+		}
+		Map<ICarRentalCompany,List<Reservation>> committed = new LinkedHashMap<ICarRentalCompany, List<Reservation>>();
+		Exception failure = null;
+		for (int i = 0; i < involved.size(); i++) {
+			try {
+				committed.put(involved.get(i), await(commits.get(i)));
+			} catch (ReservationException | RemoteException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+
+		if (failure != null) {
+			// too late to abort those, so cancel what did get committed
+			for (Map.Entry<ICarRentalCompany,List<Reservation>> entry : committed.entrySet())
+				entry.getKey().cancelReservations(entry.getValue());
+			Map<ICarRentalCompany,Long> uncommitted = new LinkedHashMap<ICarRentalCompany, Long>(hold.shardHolds);
+			uncommitted.keySet().removeAll(committed.keySet());
+			abortAll(uncommitted);
+			if (failure instanceof ReservationException)
+				throw (ReservationException) failure;
+			throw (RemoteException) failure;
+		}
+
+		List<List<Reservation>> answers = new ArrayList<List<Reservation>>();
+		for (ICarRentalCompany shard : hold.byShard.keySet())
+			answers.add(committed.get(shard));
+		return new ReservationList(merge(hold.byShard, answers, hold.size));
+	}
+
+	@Override
+	public void abortHold(long holdId) throws RemoteException {
+		ShardHold hold = holds.remove(holdId);
+		if (hold != null)
+			abortAll(hold.shardHolds);
+	}
+
+	private void abortAll(Map<ICarRentalCompany,Long> shardHolds) throws RemoteException {
+		for (Map.Entry<ICarRentalCompany,Long> entry : shardHolds.entrySet())
+			entry.getKey().abortHold(entry.getValue());
+	}
+
+	// The shards abort their own holds when they expire, the facade only has to forget them
+	private void purgeHolds() {
+		long expired = System.currentTimeMillis() - 2 * holdTimeoutMillis;
+		holds.values().removeIf(hold -> hold.created < expired);
+	}
+
+	private static class ShardHold {
+		final Map<ICarRentalCompany,List<Integer>> byShard;
+		final Map<ICarRentalCompany,Long> shardHolds;
+		final int size;
+		final long created = System.currentTimeMillis();
+
+		ShardHold(Map<ICarRentalCompany,List<Integer>> byShard, Map<ICarRentalCompany,Long> shardHolds, int size) {
+			this.byShard = byShard;
+			this.shardHolds = shardHolds;
+			this.size = size;
+		}
+	}
+
+	/***********************
+	 * RESERVATION QUERIES *
+	 ***********************/
+
+	@Override
+	public List<Reservation> getReservationsByRenter(String clientName) throws RemoteException {
+		List<Reservation> reservations = new ReservationList();
+		for (List<Reservation> shardReservations : readShards(shards, shard -> shard.getReservationsByRenter(clientName)))
+			reservations.addAll(shardReservations);
+		return reservations;
+	}
+
+	@Override
+	public int getNumberOfReservationsForTypeByName(String carType) throws RemoteException {
+		ICarRentalCompany shard = shardsByType.get(carType);
+		if (shard == null)
+			return 0;
+		return shard.getNumberOfReservationsForTypeByName(carType);
+	}
+
+	@Override
+	public int getNumberOfReservationsBy(String renter) throws RemoteException {
+		int count = 0;
+		for (int shardCount : readShards(shards, shard -> shard.getNumberOfReservationsBy(renter)))
+			count += shardCount;
+		return count;
+	}
+
+	@Override
+	public int getTotalNumberOfReservations() throws RemoteException {
+		int count = 0;
+		for (int shardCount : readShards(shards, shard -> shard.getTotalNumberOfReservations()))
+			count += shardCount;
+		return count;
+	}
+
+	/***********
+	 * ROUTING *
+	 ***********/
+
+	private interface ShardCall<T> {
+		T call(ICarRentalCompany shard) throws ReservationException, RemoteException;
+	}
+
+	// Asks the given shards at once, and returns their answers in the same order
+	private <T> List<T> callShards(List<ICarRentalCompany> targets, ShardCall<T> call)
+			throws ReservationException, RemoteException {
+		if (targets.size() == 1)
+			return Collections.singletonList(call.call(targets.get(0)));
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (ICarRentalCompany shard : targets)
+			futures.add(SHARD_CALLS.submit(() -> call.call(shard)));
+		List<T> answers = new ArrayList<T>();
+		for (Future<T> future : futures)
+			answers.add(await(future));
+		return answers;
+	}
+
+	// The same, for calls that can't fail with a ReservationException
+	private <T> List<T> readShards(List<ICarRentalCompany> targets, ShardCall<T> call) throws RemoteException {
+		try {
+			return callShards(targets, call);
+		} catch (ReservationException e) {
+			throw new RemoteException("<" + name + "> Unexpected failure of a shard", e);
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws ReservationException, RemoteException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for a shard", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ReservationException)
+				throw (ReservationException) cause;
+			if (cause instanceof RemoteException)
+				throw (RemoteException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RemoteException("A shard failed", cause);
+		}
+	}
+
+	private static List<String> carTypesOf(List<? extends Quote> quotes) {
+		List<String> carTypes = new ArrayList<String>(quotes.size());
+		for (Quote quote : quotes)
+			carTypes.add(quote.getCarType());
+		return carTypes;
+	}
+
+	// The positions of the car types, by the shard that has them
+	private Map<ICarRentalCompany,List<Integer>> groupByShard(List<String> carTypes) {
+		Map<ICarRentalCompany,List<Integer>> byShard = new LinkedHashMap<ICarRentalCompany, List<Integer>>();
+		for (int i = 0; i < carTypes.size(); i++) {
+			ICarRentalCompany shard = getShard(carTypes.get(i));
+			List<Integer> positions = byShard.get(shard);
+			if (positions == null) {
+				positions = new ArrayList<Integer>();
+				byShard.put(shard, positions);
+			}
+			positions.add(i);
+		}
+		return byShard;
+	}
+
+	private static <T> List<T> select(List<T> items, List<Integer> positions) {
+		List<T> selected = new ArrayList<T>(positions.size());
+		for (int position : positions)
+			selected.add(items.get(position));
+		return selected;
+	}
+
+	// Puts the answers of the shards back in the order of the request
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> merge(Map<ICarRentalCompany,List<Integer>> byShard, List<List<T>> answers, int size) {
+		Object[] merged = new Object[size];
+		int shard = 0;
+		for (List<Integer> positions : byShard.values()) {
+			List<T> answer = answers.get(shard++);
+			for (int i = 0; i < positions.size(); i++)
+				merged[positions.get(i)] = answer.get(i);
+		}
+		return new ArrayList<T>((List<T>) Arrays.asList(merged));
+	}
+}
@@ -0,0 +1,43 @@
+package shared;
+
+import java.io.Serializable;
+
+/**
+ * Cars of a car type were booked or released for a period, so whether that car type
+ * is available for periods overlapping it may have changed.
+ */
+public class AvailabilityChange implements Serializable {
+
+	private String carType;
+	// Epoch millis, see Quote
+	private long startTime;
+	private long endTime;
+
+	public AvailabilityChange(String carType, long startTime, long endTime) {
+		this.carType = carType;
+		this.startTime = startTime;
+		this.endTime = endTime;
+	}
+
+	public String getCarType() {
+		return carType;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getEndTime() {
+		return endTime;
+	}
+
+	// Same as the overlap check for reservations of a car
+	public boolean overlaps(long start, long end) {
+		return !(endTime < start || startTime > end);
+	}
+
+	@Override
+	public String toString() {
+		return "Availability of " + carType + " changed from " + startTime + " to " + endTime;
+	}
+}
@@ -0,0 +1,43 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Reservations a company confirmed or cancelled, in the order it did so, for a replica
+ * to apply to its copy of the company. See {@link remote.IBookingSource}.
+ */
+public class BookingChanges implements Serializable {
+
+	private long sequence;
+	private boolean latest;
+	private ReservationList reservations;
+	// The positions of the cancellations, the others are confirmations
+	private BitSet cancelled;
+
+	public BookingChanges(long sequence, boolean latest, List<Reservation> reservations, BitSet cancelled) {
+		this.sequence = sequence;
+		this.latest = latest;
+		this.reservations = new ReservationList(reservations);
+		this.cancelled = (BitSet) cancelled.clone();
+	}
+
+	// The sequence number of the last change, to ask for the ones after it next time
+	public long getSequence() {
+		return sequence;
+	}
+
+	// True if there were no more changes when these were sent
+	public boolean isLatest() {
+		return latest;
+	}
+
+	public List<Reservation> getReservations() {
+		return reservations;
+	}
+
+	public boolean isCancelled(int index) {
+		return cancelled.get(index);
+	}
+}
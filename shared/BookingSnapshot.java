@@ -0,0 +1,50 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A copy of a company's fleet and reservations to start a replica from, together with
+ * where its booking changes continue from. See {@link remote.IBookingSource}.
+ */
+public class BookingSnapshot implements Serializable {
+
+	private CarTypeCatalog catalog;
+	// The catalog id of the car type of each car, by uid, or -1 for uids not in use
+	private int[] carTypeIds;
+	private ReservationList reservations;
+	private long logId;
+	private long sequence;
+
+	public BookingSnapshot(CarTypeCatalog catalog, int[] carTypeIds, Collection<Reservation> reservations,
+			long logId, long sequence) {
+		this.catalog = catalog;
+		this.carTypeIds = carTypeIds.clone();
+		this.reservations = new ReservationList(reservations);
+		this.logId = logId;
+		this.sequence = sequence;
+	}
+
+	public CarTypeCatalog getCatalog() {
+		return catalog;
+	}
+
+	public int[] getCarTypeIds() {
+		return carTypeIds.clone();
+	}
+
+	public List<Reservation> getReservations() {
+		return reservations;
+	}
+
+	// Identifies the company's log of changes, which starts anew when the company restarts
+	public long getLogId() {
+		return logId;
+	}
+
+	// The sequence number of the last change the snapshot includes
+	public long getSequence() {
+		return sequence;
+	}
+}
@@ -1,8 +1,14 @@
 package shared;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
-public class CarType implements Serializable {
+public class CarType implements Externalizable {
+    
+    private static final int WIRE_VERSION = 1;
     
     private String name;
     private int nbOfSeats;
@@ -14,6 +20,10 @@ public class CarType implements Serializable {
 	 * CONSTRUCTOR *
 	 ***************/
     
+    // Only for deserialization
+    public CarType() {
+    }
+    
     public CarType(String name, int nbOfSeats, float trunkSpace, double rentalPricePerDay, boolean smokingAllowed) {
         this.name = name;
         this.nbOfSeats = nbOfSeats;
@@ -42,6 +52,33 @@ public class CarType implements Serializable {
     	return trunkSpace;
     }
     
+    /*****************
+     * SERIALIZATION *
+     *****************/
+    
+    // Compact and versioned, like Quote. Sets of car types are returned by every availability query.
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(WIRE_VERSION);
+        out.writeUTF(name);
+        out.writeInt(nbOfSeats);
+        out.writeFloat(trunkSpace);
+        out.writeDouble(rentalPricePerDay);
+        out.writeBoolean(smokingAllowed);
+    }
+    
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int version = in.readByte();
+        if (version != WIRE_VERSION)
+            throw new InvalidObjectException("Unsupported car type wire format version " + version);
+        name = in.readUTF();
+        nbOfSeats = in.readInt();
+        trunkSpace = in.readFloat();
+        rentalPricePerDay = in.readDouble();
+        smokingAllowed = in.readBoolean();
+    }
+    
     /*************
      * TO STRING *
      *************/
@@ -0,0 +1,130 @@
+package shared;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All car types of a company, as of a certain version of its fleet.
+ *
+ * A car type's id is its position in the catalog. Car types are only ever added to
+ * the end, so ids stay valid from one version to the next, and a query can answer
+ * with the ids of car types rather than the car types themselves, see
+ * {@link CarTypeSelection}.
+ *
+ * Wire format (version 1):
+ *   byte wire version, UTF company, long catalog version, int #types, per type: the car type
+ */
+public class CarTypeCatalog implements Externalizable {
+
+	private static final int WIRE_VERSION = 1;
+
+	private String company;
+	private long version;
+	private List<CarType> types;
+	private transient Map<String, Integer> ids;
+
+	/***************
+	 * CONSTRUCTOR *
+	 ***************/
+
+	// Only for deserialization
+	public CarTypeCatalog() {
+	}
+
+	public CarTypeCatalog(String company, long version, List<CarType> types) {
+		this.company = company;
+		this.version = version;
+		this.types = new ArrayList<CarType>(types);
+		indexTypes();
+	}
+
+	private void indexTypes() {
+		ids = new HashMap<String, Integer>();
+		for (int i = 0; i < types.size(); i++)
+			ids.put(types.get(i).getName(), i);
+	}
+
+	public String getCompany() {
+		return company;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public List<CarType> getCarTypes() {
+		return Collections.unmodifiableList(types);
+	}
+
+	public CarType getCarType(int id) {
+		return types.get(id);
+	}
+
+	// -1 if there's no car type of that name
+	public int getId(String carTypeName) {
+		Integer id = ids.get(carTypeName);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Looks up the selected car types. Any version of the catalog at least as new as the
+	 * selection will do, since ids don't change.
+	 * 
+	 * @throws IllegalArgumentException if the selection is newer than this catalog
+	 */
+	public List<CarType> resolve(CarTypeSelection selection) {
+		if (selection.getCatalogVersion() > version)
+			throw new IllegalArgumentException("<" + company + "> Selection of catalog version "
+					+ selection.getCatalogVersion() + " used with version " + version);
+		BitSet selected = selection.getIds();
+		List<CarType> resolved = new ArrayList<CarType>(selected.cardinality());
+		for (int id = selected.nextSetBit(0); id >= 0; id = selected.nextSetBit(id + 1))
+			resolved.add(types.get(id));
+		return resolved;
+	}
+
+	/*****************
+	 * SERIALIZATION *
+	 *****************/
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(WIRE_VERSION);
+		out.writeUTF(company);
+		out.writeLong(version);
+		out.writeInt(types.size());
+		for (CarType type : types)
+			type.writeExternal(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int wireVersion = in.readByte();
+		if (wireVersion != WIRE_VERSION)
+			throw new InvalidObjectException("Unsupported car type catalog wire format version " + wireVersion);
+		company = in.readUTF();
+		version = in.readLong();
+		int count = in.readInt();
+		types = new ArrayList<CarType>(count);
+		for (int i = 0; i < count; i++) {
+			CarType type = new CarType();
+			type.readExternal(in);
+			types.add(type);
+		}
+		indexTypes();
+	}
+
+	@Override
+	public String toString() {
+		return "Catalog of " + company + " v" + version + ": " + types.size() + " car types";
+	}
+}
@@ -0,0 +1,27 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+/**
+ * Some of the car types of a company's {@link CarTypeCatalog}, by id. A few bytes on the
+ * wire instead of the car types themselves, for whoever already has the catalog.
+ */
+public class CarTypeSelection implements Serializable {
+
+	private long catalogVersion;
+	private BitSet ids;
+
+	public CarTypeSelection(long catalogVersion, BitSet ids) {
+		this.catalogVersion = catalogVersion;
+		this.ids = (BitSet) ids.clone();
+	}
+
+	public long getCatalogVersion() {
+		return catalogVersion;
+	}
+
+	public BitSet getIds() {
+		return (BitSet) ids.clone();
+	}
+}
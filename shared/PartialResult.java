@@ -0,0 +1,77 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The result of a query over all companies, together with the companies that are missing
+ * from it and why: those that didn't answer in time, those that answered with a failure,
+ * and those that weren't asked at all because they failed too often lately.
+ */
+public class PartialResult<T> implements Serializable {
+
+	private T value;
+	private Set<String> timedOutCompanies;
+	private Set<String> failedCompanies;
+	private Set<String> skippedCompanies;
+
+	public PartialResult(T value, Set<String> timedOutCompanies) {
+		this(value, timedOutCompanies, Collections.<String>emptySet(), Collections.<String>emptySet());
+	}
+
+	public PartialResult(T value, Set<String> timedOutCompanies, Set<String> failedCompanies, Set<String> skippedCompanies) {
+		this.value = value;
+		this.timedOutCompanies = new TreeSet<String>(timedOutCompanies);
+		this.failedCompanies = new TreeSet<String>(failedCompanies);
+		this.skippedCompanies = new TreeSet<String>(skippedCompanies);
+	}
+
+	// Another value, computed from this one, so missing the same companies
+	public <U> PartialResult<U> withValue(U value) {
+		return new PartialResult<U>(value, timedOutCompanies, failedCompanies, skippedCompanies);
+	}
+
+	public T getValue() {
+		return value;
+	}
+
+	public Set<String> getTimedOutCompanies() {
+		return Collections.unmodifiableSet(timedOutCompanies);
+	}
+
+	public Set<String> getFailedCompanies() {
+		return Collections.unmodifiableSet(failedCompanies);
+	}
+
+	public Set<String> getSkippedCompanies() {
+		return Collections.unmodifiableSet(skippedCompanies);
+	}
+
+	// True if every company answered
+	public boolean isComplete() {
+		return timedOutCompanies.isEmpty() && failedCompanies.isEmpty() && skippedCompanies.isEmpty();
+	}
+
+	// The companies that are missing and why, e.g. "no answer from [Avis], failed: [Hertz]"
+	public String describeMissing() {
+		List<String> missing = new ArrayList<String>();
+		if (!timedOutCompanies.isEmpty())
+			missing.add("no answer from " + timedOutCompanies);
+		if (!failedCompanies.isEmpty())
+			missing.add("failed: " + failedCompanies);
+		if (!skippedCompanies.isEmpty())
+			missing.add("not asked: " + skippedCompanies);
+		return String.join(", ", missing);
+	}
+
+	@Override
+	public String toString() {
+		if (isComplete())
+			return String.valueOf(value);
+		return value + " (" + describeMissing() + ")";
+	}
+}
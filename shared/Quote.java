@@ -1,12 +1,24 @@
 package shared;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Date;
 
-public class Quote implements Serializable {
+/**
+ * Quotes (and reservations) are sent over RMI all the time, so they have their own compact,
+ * versioned wire format instead of the default serialization, see {@link #writeExternal(ObjectOutput)}.
+ */
+public class Quote implements Externalizable {
 
-    private Date startDate;
-    private Date endDate;
+    private static final int WIRE_VERSION = 1;
+
+    // Epoch millis rather than Dates: they're compared on every availability check and
+    // sent along with every quote, and primitives cost nothing to compare or copy.
+    private long startTime;
+    private long endTime;
     private String carRenter;
     private String rentalCompany;
     private String carType;
@@ -16,21 +28,37 @@ public class Quote implements Serializable {
 	 * CONSTRUCTOR *
 	 ***************/
 
+    // Only for deserialization
+    public Quote() {
+    }
+
     public Quote(String carRenter, Date start, Date end, String rentalCompany, String carType, double rentalPrice) {
+        this(carRenter, start.getTime(), end.getTime(), rentalCompany, carType, rentalPrice);
+    }
+
+    public Quote(String carRenter, long startTime, long endTime, String rentalCompany, String carType, double rentalPrice) {
         this.carRenter = carRenter;
-        this.startDate = start;
-        this.endDate = end;
+        this.startTime = startTime;
+        this.endTime = endTime;
         this.rentalCompany = rentalCompany;
         this.carType = carType;
         this.rentalPrice = rentalPrice;
     }
 
     public Date getStartDate() {
-        return startDate;
+        return new Date(startTime);
     }
 
     public Date getEndDate() {
-        return endDate;
+        return new Date(endTime);
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
     }
 
     public String getCarRenter() {
@@ -49,6 +77,39 @@ public class Quote implements Serializable {
 		return carType;
 	}
     
+    /*****************
+     * SERIALIZATION *
+     *****************/
+
+    /**
+     * Writes the period and price as primitives and the names as plain UTF strings, without
+     * the class and field descriptions of default serialization. Lists of reservations go one
+     * step further and send every name only once, see {@link ReservationList}.
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(WIRE_VERSION);
+        out.writeUTF(carRenter);
+        out.writeUTF(rentalCompany);
+        out.writeUTF(carType);
+        out.writeLong(startTime);
+        out.writeLong(endTime);
+        out.writeDouble(rentalPrice);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int version = in.readByte();
+        if (version != WIRE_VERSION)
+            throw new InvalidObjectException("Unsupported quote wire format version " + version);
+        carRenter = in.readUTF();
+        rentalCompany = in.readUTF();
+        carType = in.readUTF();
+        startTime = in.readLong();
+        endTime = in.readLong();
+        rentalPrice = in.readDouble();
+    }
+
     /*************
      * TO STRING *
      *************/
@@ -65,12 +126,12 @@ public class Quote implements Serializable {
 		int result = 1;
 		result = prime * result + ((carRenter == null) ? 0 : carRenter.hashCode());
 		result = prime * result + ((carType == null) ? 0 : carType.hashCode());
-		result = prime * result + ((endDate == null) ? 0 : endDate.hashCode());
+		result = prime * result + (int) (endTime ^ (endTime >>> 32));
 		result = prime * result + ((rentalCompany == null) ? 0 : rentalCompany.hashCode());
 		long temp;
 		temp = Double.doubleToLongBits(rentalPrice);
 		result = prime * result + (int) (temp ^ (temp >>> 32));
-		result = prime * result + ((startDate == null) ? 0 : startDate.hashCode());
+		result = prime * result + (int) (startTime ^ (startTime >>> 32));
 		return result;
 	}
 
@@ -93,10 +154,7 @@ public class Quote implements Serializable {
 				return false;
 		} else if (!carType.equals(other.carType))
 			return false;
-		if (endDate == null) {
-			if (other.endDate != null)
-				return false;
-		} else if (!endDate.equals(other.endDate))
+		if (endTime != other.endTime)
 			return false;
 		if (rentalCompany == null) {
 			if (other.rentalCompany != null)
@@ -105,10 +163,7 @@ public class Quote implements Serializable {
 			return false;
 		if (Double.doubleToLongBits(rentalPrice) != Double.doubleToLongBits(other.rentalPrice))
 			return false;
-		if (startDate == null) {
-			if (other.startDate != null)
-				return false;
-		} else if (!startDate.equals(other.startDate))
+		if (startTime != other.startTime)
 			return false;
 		return true;
 	}
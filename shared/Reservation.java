@@ -1,28 +1,61 @@
 package shared;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 public class Reservation extends Quote {
 
+    private long id;
     private int carId;
     
     /***************
 	 * CONSTRUCTOR *
 	 ***************/
 
-    public Reservation(Quote quote, int carId) {
-    	super(quote.getCarRenter(), quote.getStartDate(), quote.getEndDate(), 
+    // Only for deserialization
+    public Reservation() {
+    }
+
+    public Reservation(Quote quote, int carId, long id) {
+    	super(quote.getCarRenter(), quote.getStartTime(), quote.getEndTime(), 
     			quote.getRentalCompany(), quote.getCarType(), quote.getRentalPrice());
         this.carId = carId;
+        this.id = id;
     }
     
     /******
      * ID *
      ******/
     
+    // Unique within the rental company that made the reservation
+    public long getId() {
+    	return id;
+    }
+    
     public int getCarId() {
     	return carId;
     }
     
+    /*****************
+     * SERIALIZATION *
+     *****************/
+
+    // The quote's wire format carries the version, these fields are part of version 1
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+        out.writeLong(id);
+        out.writeInt(carId);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        id = in.readLong();
+        carId = in.readInt();
+    }
+    
     /*************
      * TO STRING *
      *************/
@@ -37,6 +70,7 @@ public class Reservation extends Quote {
 	public int hashCode() {
 		final int prime = 31;
 		int result = super.hashCode();
+		result = prime * result + (int) (id ^ (id >>> 32));
 		result = prime * result + carId;
 		return result;
 	}
@@ -46,6 +80,8 @@ public class Reservation extends Quote {
 		if (!super.equals(obj))
 			return false;
 		Reservation other = (Reservation) obj;
+		if (id != other.id)
+			return false;
 		if (carId != other.carId)
 			return false;
 		return true;
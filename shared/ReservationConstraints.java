@@ -5,8 +5,9 @@ import java.util.Date;
 
 public class ReservationConstraints implements Serializable {
     
-    private Date startDate;
-    private Date endDate;
+    // Epoch millis, see Quote
+    private long startTime;
+    private long endTime;
     private String carType;
 	
     public ReservationConstraints(Date start, Date end, String carType){
@@ -16,19 +17,27 @@ public class ReservationConstraints implements Serializable {
     }
     
     public Date getStartDate() {
-		return startDate;
+		return new Date(startTime);
+	}
+    
+    public long getStartTime() {
+		return startTime;
 	}
     
     private void setStartDate(Date startDate) {
-		this.startDate = startDate;
+		this.startTime = startDate.getTime();
 	}
     
     public Date getEndDate() {
-		return endDate;
+		return new Date(endTime);
+	}
+    
+    public long getEndTime() {
+		return endTime;
 	}
     
 	private void setEndDate(Date endDate) {
-		this.endDate = endDate;
+		this.endTime = endDate.getTime();
 	}
 	
 	public String getCarType() {
@@ -49,9 +58,8 @@ public class ReservationConstraints implements Serializable {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((endDate == null) ? 0 : endDate.hashCode());
-		result = prime * result
-				+ ((startDate == null) ? 0 : startDate.hashCode());
+		result = prime * result + (int) (endTime ^ (endTime >>> 32));
+		result = prime * result + (int) (startTime ^ (startTime >>> 32));
 		result = prime * result + ((carType == null) ? 0 : carType.hashCode());
 		return result;
 	}
@@ -65,15 +73,9 @@ public class ReservationConstraints implements Serializable {
 		if (getClass() != obj.getClass())
 			return false;
 		ReservationConstraints other = (ReservationConstraints) obj;
-		if (endDate == null) {
-			if (other.endDate != null)
-				return false;
-		} else if (!endDate.equals(other.endDate))
+		if (endTime != other.endTime)
 			return false;
-		if (startDate == null) {
-			if (other.startDate != null)
-				return false;
-		} else if (!startDate.equals(other.startDate))
+		if (startTime != other.startTime)
 			return false;
 		if (carType == null) {
 			if (other.carType != null)
@@ -0,0 +1,170 @@
+package shared;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list of reservations with a compact wire format.
+ *
+ * The reservations returned by a single call mostly share the same renter, company and
+ * car type names. Rather than sending those with every reservation, they're sent once in
+ * a dictionary, and every reservation refers to them by index. The remaining fields are
+ * written as primitives. When read, reservations share the same name strings as well.
+ *
+ * Wire format (version 1):
+ *   byte version
+ *   int #names, per name: UTF string
+ *   int #reservations, per reservation: renter, company and car type index (each a byte,
+ *   	short or int, depending on the number of names), long start, long end, double price,
+ *   	long id, int car id
+ */
+public class ReservationList extends AbstractList<Reservation> implements RandomAccess, Externalizable {
+
+	private static final int WIRE_VERSION = 1;
+	// counts come from the peer, so lists only grow past this as their elements actually arrive
+	private static final int MAX_INITIAL_CAPACITY = 1024;
+
+	private List<Reservation> reservations;
+
+	/***************
+	 * CONSTRUCTOR *
+	 ***************/
+
+	public ReservationList() {
+		this.reservations = new ArrayList<Reservation>();
+	}
+
+	public ReservationList(Collection<? extends Reservation> reservations) {
+		this.reservations = new ArrayList<Reservation>(reservations);
+	}
+
+	/********
+	 * LIST *
+	 ********/
+
+	@Override
+	public Reservation get(int index) {
+		return reservations.get(index);
+	}
+
+	@Override
+	public int size() {
+		return reservations.size();
+	}
+
+	@Override
+	public Reservation set(int index, Reservation res) {
+		return reservations.set(index, res);
+	}
+
+	@Override
+	public void add(int index, Reservation res) {
+		reservations.add(index, res);
+	}
+
+	@Override
+	public Reservation remove(int index) {
+		return reservations.remove(index);
+	}
+
+	/*****************
+	 * SERIALIZATION *
+	 *****************/
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+		for (Reservation res : reservations) {
+			addName(names, res.getCarRenter());
+			addName(names, res.getRentalCompany());
+			addName(names, res.getCarType());
+		}
+
+		out.writeByte(WIRE_VERSION);
+		out.writeInt(names.size());
+		for (String name : names.keySet())
+			out.writeUTF(name);
+
+		out.writeInt(reservations.size());
+		for (Reservation res : reservations) {
+			writeIndex(out, names.get(res.getCarRenter()), names.size());
+			writeIndex(out, names.get(res.getRentalCompany()), names.size());
+			writeIndex(out, names.get(res.getCarType()), names.size());
+			out.writeLong(res.getStartTime());
+			out.writeLong(res.getEndTime());
+			out.writeDouble(res.getRentalPrice());
+			out.writeLong(res.getId());
+			out.writeInt(res.getCarId());
+		}
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = in.readByte();
+		if (version != WIRE_VERSION)
+			throw new InvalidObjectException("Unsupported reservation list wire format version " + version);
+
+		int nbOfNames = readCount(in, "names");
+		List<String> names = new ArrayList<String>(Math.min(nbOfNames, MAX_INITIAL_CAPACITY));
+		for (int i = 0; i < nbOfNames; i++)
+			names.add(in.readUTF());
+
+		int count = readCount(in, "reservations");
+		reservations = new ArrayList<Reservation>(Math.min(count, MAX_INITIAL_CAPACITY));
+		for (int i = 0; i < count; i++) {
+			String renter = names.get(readIndex(in, nbOfNames));
+			String company = names.get(readIndex(in, nbOfNames));
+			String carType = names.get(readIndex(in, nbOfNames));
+			long start = in.readLong();
+			long end = in.readLong();
+			double price = in.readDouble();
+			long id = in.readLong();
+			int carId = in.readInt();
+			reservations.add(new Reservation(new Quote(renter, start, end, company, carType, price), carId, id));
+		}
+	}
+
+	private static void addName(Map<String, Integer> names, String name) {
+		if (!names.containsKey(name))
+			names.put(name, names.size());
+	}
+
+	private static void writeIndex(ObjectOutput out, int index, int count) throws IOException {
+		if (count <= 0xff)
+			out.writeByte(index);
+		else if (count <= 0xffff)
+			out.writeShort(index);
+		else
+			out.writeInt(index);
+	}
+
+	private static int readCount(ObjectInput in, String what) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			throw new InvalidObjectException("Negative number of " + what + " in reservation list: " + count);
+		return count;
+	}
+
+	private static int readIndex(ObjectInput in, int count) throws IOException {
+		int index;
+		if (count <= 0xff)
+			index = in.readUnsignedByte();
+		else if (count <= 0xffff)
+			index = in.readUnsignedShort();
+		else
+			index = in.readInt();
+		if (index < 0 || index >= count)
+			throw new InvalidObjectException("Name index " + index + " out of range in reservation list of " + count + " names");
+		return index;
+	}
+}
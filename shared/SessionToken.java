@@ -0,0 +1,43 @@
+package shared;
+
+import java.io.Serializable;
+import java.security.SecureRandom;
+
+/**
+ * Identifies a session at a multiplexed session endpoint. It's random, so a session
+ * can't be used by someone who merely guesses its token.
+ */
+public class SessionToken implements Serializable {
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private long high;
+	private long low;
+
+	private SessionToken(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	public static SessionToken random() {
+		return new SessionToken(random.nextLong(), random.nextLong());
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(high) * 31 + Long.hashCode(low);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SessionToken))
+			return false;
+		SessionToken other = (SessionToken) obj;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+}
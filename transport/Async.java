@@ -0,0 +1,126 @@
+package transport;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Calls a stub without waiting for the answer, through an interface like
+ * remote.ICarRentalCompanyAsync: every method fooAsync(...) of it calls foo(...) of the
+ * stub, and returns a future of the answer.
+ *
+ * For stubs of NioTransport the call is sent right away and nothing waits for the
+ * answer, so one thread can have any number of calls in flight. Any other stub, like
+ * one of RMI, can only be called blocking, so its calls run on the given executor, one
+ * thread per call in flight.
+ *
+ * Futures complete with what the method returns, or with what it throws, as is. Those of
+ * NioTransport complete on one of its few callback threads, so whatever is chained to
+ * them shouldn't block for long, or should be chained with an executor of its own.
+ *
+ * Cancelling a future gives up on the call. One that waits for a thread of the executor
+ * is dropped, the thread of one that's running is interrupted, and NioTransport drops
+ * the answer of one that was sent.
+ */
+public class Async {
+
+	// The methods of the stub's interfaces that the methods of an async interface call
+	private static final ConcurrentMap<List<Class<?>>, Map<Method, Method>> calledMethods = new ConcurrentHashMap<>();
+
+	private Async() {
+	}
+
+	/**
+	 * @param stub the stub to call
+	 * @param asyncInterface the interface to call it through, see Async
+	 * @param blockingCalls runs the calls of stubs that can't be called without waiting
+	 * @throws IllegalArgumentException if the stub has no remote method for one of the interface
+	 */
+	public static <A> A of(Remote stub, Class<A> asyncInterface, Executor blockingCalls) {
+		Map<Method, Method> methods = calledMethods.computeIfAbsent(
+				List.of(stub.getClass(), asyncInterface), key -> mapMethods(stub.getClass(), asyncInterface));
+		InvocationHandler handler = Proxy.isProxyClass(stub.getClass()) ? Proxy.getInvocationHandler(stub) : null;
+		RemoteStub nio = handler instanceof RemoteStub ? (RemoteStub) handler : null;
+		return asyncInterface.cast(Proxy.newProxyInstance(asyncInterface.getClassLoader(),
+				new Class<?>[]{asyncInterface}, (proxy, method, args) -> {
+					Method called = methods.get(method);
+					if (called == null)
+						return invokeObjectMethod(proxy, method, args, stub);
+					if (nio != null)
+						return nio.invokeAsync(called, args);
+					return callOn(blockingCalls, stub, called, args);
+				}));
+	}
+
+	private static Map<Method, Method> mapMethods(Class<?> stubClass, Class<?> asyncInterface) {
+		Map<Method, Method> methods = new HashMap<>();
+		for (Method method : asyncInterface.getMethods()) {
+			if (!method.getName().endsWith("Async") || method.getReturnType() != CompletableFuture.class)
+				throw new IllegalArgumentException("<" + method.getName() + "> Not an async method");
+			String name = method.getName().substring(0, method.getName().length() - "Async".length());
+			Method called = findRemoteMethod(stubClass, name, method.getParameterTypes());
+			if (called == null)
+				throw new IllegalArgumentException("<" + name + "> No such remote method in " + stubClass.getName());
+			methods.put(method, called);
+		}
+		return methods;
+	}
+
+	// The method as declared by a remote interface, which is what stubs know it as
+	private static Method findRemoteMethod(Class<?> stubClass, String name, Class<?>[] parameterTypes) {
+		for (Class<?> remoteInterface : MethodTable.remoteInterfacesOf(stubClass)) {
+			try {
+				return remoteInterface.getMethod(name, parameterTypes);
+			} catch (NoSuchMethodException e) {
+				// maybe in the next one
+			}
+		}
+		return null;
+	}
+
+	private static CompletableFuture<Object> callOn(Executor executor, Remote stub, Method method, Object[] args) {
+		CompletableFuture<Object> answer = new CompletableFuture<>();
+		FutureTask<Void> task = new FutureTask<>(() -> {
+			try {
+				answer.complete(method.invoke(stub, args));
+			} catch (InvocationTargetException e) {
+				answer.completeExceptionally(e.getCause());
+			} catch (IllegalAccessException | RuntimeException e) {
+				answer.completeExceptionally(e);
+			}
+		}, null);
+		answer.whenComplete((value, failure) -> {
+			if (answer.isCancelled())
+				task.cancel(true);
+		});
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			answer.completeExceptionally(new RemoteException("No thread left to call " + method.getName(), e));
+		}
+		return answer;
+	}
+
+	private static Object invokeObjectMethod(Object proxy, Method method, Object[] args, Remote stub) {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		default:
+			return "Async " + stub;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * A non-blocking connection that sends and receives whole frames, see Wire.
+ *
+ * Any thread can send. A frame goes straight to the socket when nothing is waiting to be
+ * sent before it, otherwise it's queued and the selector thread sends it once the socket
+ * can take more, together with whatever else was queued by then. Only the selector
+ * thread reads.
+ */
+final class FrameChannel {
+
+	private final SocketChannel channel;
+	private SelectionKey key;
+	// Only used by the selector thread
+	private ByteBuffer incoming = ByteBuffer.allocate(64 * 1024);
+	// Guarded by this
+	private final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<>();
+	private volatile boolean closed;
+
+	FrameChannel(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	// Only on the selector thread
+	synchronized void register(Selector selector, Object attachment) throws IOException {
+		key = channel.register(selector, outgoing.isEmpty() ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE, attachment);
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @throws IOException if the connection is closed or broken
+	 */
+	synchronized void send(ByteBuffer frame) throws IOException {
+		if (closed)
+			throw new EOFException("Connection closed");
+		if (outgoing.isEmpty())
+			channel.write(frame);
+		if (frame.hasRemaining()) {
+			boolean wasEmpty = outgoing.isEmpty();
+			outgoing.add(frame);
+			if (wasEmpty && key != null) {
+				try {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				} catch (CancelledKeyException e) {
+					// closed meanwhile
+					throw new EOFException("Connection closed");
+				}
+				key.selector().wakeup();
+			}
+		}
+	}
+
+	// Only on the selector thread, when the socket can take more
+	synchronized void flush() throws IOException {
+		ByteBuffer[] frames = outgoing.toArray(new ByteBuffer[0]);
+		channel.write(frames);
+		while (!outgoing.isEmpty() && !outgoing.peek().hasRemaining())
+			outgoing.poll();
+		if (outgoing.isEmpty())
+			key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Reads what arrived and hands every complete frame to the consumer, without the
+	 * length in front. Only on the selector thread.
+	 *
+	 * @return false if the other end closed the connection
+	 */
+	boolean read(Consumer<byte[]> frames) throws IOException {
+		int read = channel.read(incoming);
+		incoming.flip();
+		while (incoming.remaining() >= 4) {
+			int length = incoming.getInt(incoming.position());
+			if (length < Wire.HEADER_BYTES - 4 || length > Wire.MAX_FRAME_BYTES)
+				throw new StreamCorruptedException("Frame of " + length + " bytes");
+			if (incoming.remaining() < 4 + length) {
+				if (incoming.capacity() < 4 + length) {
+					ByteBuffer larger = ByteBuffer.allocate(Math.max(4 + length, incoming.capacity() * 2));
+					larger.put(incoming);
+					incoming = larger;
+					incoming.flip();
+				}
+				break;
+			}
+			byte[] frame = new byte[length];
+			incoming.position(incoming.position() + 4);
+			incoming.get(frame);
+			frames.accept(frame);
+		}
+		incoming.compact();
+		return read >= 0;
+	}
+
+	void close() {
+		closed = true;
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return String.valueOf(channel.getRemoteAddress());
+		} catch (IOException e) {
+			return "closed connection";
+		}
+	}
+}
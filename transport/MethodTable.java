@@ -0,0 +1,114 @@
+package transport;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The methods of a set of remote interfaces, numbered the same way on both ends of a
+ * connection, so a call only has to send the number. The number is the index in the
+ * methods sorted by signature, so it only depends on the interfaces, not on the order
+ * the JVM lists their methods in.
+ */
+final class MethodTable {
+
+	private static final ConcurrentMap<List<String>, MethodTable> tables = new ConcurrentHashMap<>();
+
+	private final Class<?>[] interfaces;
+	private final Method[] methods;
+	private final Map<Method, Integer> indexes = new HashMap<>();
+	// Spread to (Object target, Object[] args)Object, so calling them needs no reflection
+	private final MethodHandle[] handles;
+
+	private MethodTable(Class<?>[] interfaces) throws IllegalAccessException {
+		this.interfaces = interfaces;
+		Map<String, Method> bySignature = new HashMap<>();
+		for (Class<?> type : interfaces) {
+			for (Method method : type.getMethods())
+				bySignature.putIfAbsent(signature(method), method);
+		}
+		List<String> signatures = new ArrayList<>(bySignature.keySet());
+		signatures.sort(Comparator.naturalOrder());
+		Map<String, Integer> numbers = new HashMap<>();
+		methods = new Method[signatures.size()];
+		handles = new MethodHandle[signatures.size()];
+		for (int i = 0; i < methods.length; i++) {
+			numbers.put(signatures.get(i), i);
+			methods[i] = bySignature.get(signatures.get(i));
+			int arity = methods[i].getParameterCount();
+			handles[i] = MethodHandles.publicLookup().unreflect(methods[i])
+					.asType(MethodType.genericMethodType(arity + 1))
+					.asSpreader(Object[].class, arity);
+		}
+		// a method inherited from several interfaces has the same number for each of them
+		for (Class<?> type : interfaces) {
+			for (Method method : type.getMethods())
+				indexes.put(method, numbers.get(signature(method)));
+		}
+	}
+
+	static MethodTable of(Class<?>[] interfaces) {
+		List<String> names = new ArrayList<>();
+		for (Class<?> type : interfaces)
+			names.add(type.getName());
+		return tables.computeIfAbsent(names, key -> {
+			try {
+				return new MethodTable(interfaces);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("<" + key + "> Interfaces aren't public", e);
+			}
+		});
+	}
+
+	/**
+	 * All remote interfaces the class implements, like the stubs of RMI have them.
+	 */
+	static Class<?>[] remoteInterfacesOf(Class<?> type) {
+		Set<Class<?>> found = new LinkedHashSet<>();
+		for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+			for (Class<?> implemented : current.getInterfaces()) {
+				if (Remote.class.isAssignableFrom(implemented))
+					found.add(implemented);
+			}
+		}
+		return found.toArray(new Class<?>[0]);
+	}
+
+	private static String signature(Method method) {
+		return method.getName() + Arrays.toString(method.getParameterTypes());
+	}
+
+	Class<?>[] getInterfaces() {
+		return interfaces;
+	}
+
+	int size() {
+		return methods.length;
+	}
+
+	// -1 for methods that aren't in the interfaces, e.g. those of Object
+	int indexOf(Method method) {
+		Integer index = indexes.get(method);
+		return index == null ? -1 : index;
+	}
+
+	Method get(int index) {
+		return methods[index];
+	}
+
+	MethodHandle getHandle(int index) {
+		return handles[index];
+	}
+}
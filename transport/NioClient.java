@@ -0,0 +1,325 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.MarshalException;
+import java.rmi.UnmarshalException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls the objects of NioServers, for all stubs in the JVM.
+ *
+ * The calls to a server share a few connections, taking turns. A call doesn't wait for
+ * the previous one on its connection: it's sent right away with its own call id, and the
+ * answer completes its future whenever it arrives, see call. So a connection can have
+ * any number of calls in flight, and the caller only needs a thread if it wants to wait.
+ *
+ * One selector thread reads the answers of all connections, and hands them to a few
+ * callback threads to complete their futures, so whatever depends on them can't hold up
+ * the other answers. It shouldn't block for long still, as it holds up the answers that
+ * wait for a callback thread. A call that gets no answer in time fails, and one that is
+ * cancelled is given up on: in both cases its answer is dropped when it comes.
+ *
+ * A connection that breaks fails only its own calls. If the selector itself fails, the
+ * client stops: all calls waiting for an answer fail, and so do the ones after,
+ * NioTransport starts a new client for those.
+ */
+final class NioClient implements Runnable {
+
+	private static Logger logger = Logger.getLogger(NioClient.class.getName());
+
+	// A connection and the calls that wait for an answer on it
+	private static class Connection {
+		final FrameChannel channel;
+		final ConcurrentMap<Long, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+		Connection(FrameChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	// The connections to one server
+	private class Endpoint {
+		final InetSocketAddress address;
+		final Connection[] connections;
+		final AtomicInteger turn = new AtomicInteger();
+
+		Endpoint(String host, int port) {
+			this.address = new InetSocketAddress(host, port);
+			this.connections = new Connection[connectionsPerServer];
+		}
+
+		// Connects again if the connection whose turn it is broke
+		Connection next() throws ConnectException {
+			if (stopped)
+				throw new ConnectException("Transport client stopped");
+			int slot = Math.floorMod(turn.getAndIncrement(), connections.length);
+			synchronized (this) {
+				Connection connection = connections[slot];
+				if (connection == null || connection.channel.isClosed()) {
+					connection = connect();
+					connections[slot] = connection;
+				}
+				return connection;
+			}
+		}
+
+		private Connection connect() throws ConnectException {
+			SocketChannel socket = null;
+			Connection connection;
+			try {
+				socket = SocketChannel.open();
+				socket.socket().connect(address, connectTimeoutMillis);
+				connection = new Connection(new FrameChannel(socket));
+			} catch (IOException e) {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException closing) {
+						// failed anyway
+					}
+				}
+				throw new ConnectException("Connection refused to host: " + address, e);
+			}
+			registrations.add(connection);
+			selector.wakeup();
+			// stopped while connecting, so it would never be registered
+			if (stopped && registrations.remove(connection)) {
+				connection.channel.close();
+				throw new ConnectException("Transport client stopped");
+			}
+			return connection;
+		}
+	}
+
+	private final int connectionsPerServer;
+	private final int connectTimeoutMillis;
+	private final long callTimeoutMillis;
+	private final Selector selector;
+	private final Thread selectorThread;
+	// Complete the futures of the answers, never on the selector thread
+	private final ExecutorService callbacks;
+	// Fails the calls that get no answer in time
+	private final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "transport-client-deadlines");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+	// Connected by callers, registered with the selector by its own thread
+	private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+	private final AtomicLong callIds = new AtomicLong();
+	private volatile boolean stopped;
+
+	/**
+	 * @param callTimeoutMillis how long a call waits for its answer, 0 for as long as
+	 * 		its connection lasts
+	 * @param callbackThreads the number of threads that complete the futures of answers
+	 */
+	NioClient(int connectionsPerServer, int connectTimeoutMillis, long callTimeoutMillis, int callbackThreads)
+			throws IOException {
+		this.connectionsPerServer = Math.max(1, connectionsPerServer);
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.callTimeoutMillis = callTimeoutMillis;
+		this.callbacks = Executors.newFixedThreadPool(Math.max(1, callbackThreads), runnable -> {
+			Thread thread = new Thread(runnable, "transport-client-callback");
+			thread.setDaemon(true);
+			return thread;
+		});
+		deadlines.setRemoveOnCancelPolicy(true);
+		this.selector = Selector.open();
+		this.selectorThread = new Thread(this, "transport-client");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Sends a call to the object of the stub without waiting for the answer.
+	 *
+	 * @return completes with what the method returned, or with what it threw. Or with a
+	 * 		RemoteException if the call failed on the way, the connection broke before
+	 * 		the answer came, or it didn't come in time. Cancelling it gives up on the
+	 * 		call.
+	 */
+	CompletableFuture<Object> call(RemoteStub stub, int method, Object[] args) {
+		CompletableFuture<Object> answer = new CompletableFuture<>();
+		ByteBuffer frame;
+		long callId = callIds.incrementAndGet();
+		try {
+			Wire.Output out = new Wire.Output(callId, Wire.REQUEST, NioTransport.getServerIfRunning());
+			out.writeLong(stub.getObjectId());
+			out.writeShort(method);
+			if (args != null) {
+				for (Object arg : args)
+					out.writeObject(arg);
+			}
+			frame = out.toFrame();
+		} catch (IOException e) {
+			answer.completeExceptionally(new MarshalException("Could not write the call", e));
+			return answer;
+		}
+
+		send(stub, callId, frame, answer);
+		return answer;
+	}
+
+	private void send(RemoteStub stub, long callId, ByteBuffer frame, CompletableFuture<Object> answer) {
+		try {
+			String key = stub.getHost() + ":" + stub.getPort();
+			Connection connection = endpoints.computeIfAbsent(key, k -> new Endpoint(stub.getHost(), stub.getPort())).next();
+			connection.calls.put(callId, answer);
+			ScheduledFuture<?> deadline = callTimeoutMillis <= 0 ? null : deadlines.schedule(
+					() -> expired(connection, callId), callTimeoutMillis, TimeUnit.MILLISECONDS);
+			// whether answered, failed, expired or cancelled, it no longer waits
+			answer.whenComplete((value, failure) -> {
+				connection.calls.remove(callId, answer);
+				if (deadline != null)
+					deadline.cancel(false);
+			});
+			try {
+				connection.channel.send(frame);
+			} catch (IOException e) {
+				connection.channel.close();
+				answer.completeExceptionally(new ConnectException("Could not send the call to " + key, e));
+			}
+		} catch (ConnectException e) {
+			answer.completeExceptionally(e);
+		}
+	}
+
+	// The way an RMI call fails when its answer doesn't come in time
+	private void expired(Connection connection, long callId) {
+		CompletableFuture<Object> answer = connection.calls.remove(callId);
+		if (answer != null)
+			answer.completeExceptionally(new UnmarshalException("No answer from " + connection.channel + " within "
+					+ callTimeoutMillis + " ms", new SocketTimeoutException()));
+	}
+
+	/************
+	 * SELECTOR *
+	 ************/
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				selector.select();
+				for (Connection connection = registrations.poll(); connection != null; connection = registrations.poll()) {
+					try {
+						connection.channel.register(selector, connection);
+					} catch (IOException e) {
+						broken(connection, e);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid())
+						serve((Connection) key.attachment(), key);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.SEVERE, "Transport client selector failed, stopping", e);
+			stop(new IOException("Transport client stopped", e));
+		}
+	}
+
+	private void serve(Connection connection, SelectionKey key) {
+		try {
+			if (key.isWritable())
+				connection.channel.flush();
+			if (key.isReadable() && !connection.channel.read(frame -> answer(connection, frame)))
+				broken(connection, new IOException("Closed by the server"));
+		} catch (IOException e) {
+			broken(connection, e);
+		} catch (CancelledKeyException e) {
+			broken(connection, new IOException("Connection closed", e));
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "<" + connection.channel + "> Dropping a connection that failed", e);
+			broken(connection, new IOException("Connection failed", e));
+		}
+	}
+
+	// Fails the calls on every connection, and those of connections still to be registered
+	private void stop(IOException cause) {
+		stopped = true;
+		for (Endpoint endpoint : endpoints.values()) {
+			synchronized (endpoint) {
+				for (Connection connection : endpoint.connections) {
+					if (connection != null)
+						broken(connection, cause);
+				}
+			}
+		}
+		for (Connection connection = registrations.poll(); connection != null; connection = registrations.poll())
+			broken(connection, cause);
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	private void answer(Connection connection, byte[] frame) {
+		Wire.Input in;
+		try {
+			in = new Wire.Input(frame);
+		} catch (IOException e) {
+			broken(connection, e);
+			return;
+		}
+		CompletableFuture<Object> answer = connection.calls.remove(in.callId);
+		if (answer == null)
+			return;
+		try {
+			Object value = in.readObject();
+			if (in.kind == Wire.THROWN)
+				fail(answer, (Throwable) value);
+			else
+				callbacks.execute(() -> answer.complete(value));
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			fail(answer, new UnmarshalException("Could not read the answer", e));
+		}
+	}
+
+	private void fail(CompletableFuture<Object> answer, Throwable failure) {
+		callbacks.execute(() -> answer.completeExceptionally(failure));
+	}
+
+	// Fails the calls still waiting on the connection, the next call connects again
+	private void broken(Connection connection, IOException cause) {
+		ConnectException failure = new ConnectException("Connection to " + connection.channel + " lost", cause);
+		connection.channel.close();
+		for (Long callId : connection.calls.keySet()) {
+			CompletableFuture<Object> answer = connection.calls.remove(callId);
+			if (answer != null)
+				fail(answer, failure);
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package transport;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.MarshalException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.UnmarshalException;
+import java.rmi.server.ExportException;
+import java.security.SecureRandom;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the objects exported with NioTransport on one port.
+ *
+ * One selector thread accepts connections, reads requests and sends whatever answers
+ * couldn't be sent right away. The calls themselves run on the worker threads, so
+ * requests that arrive one after the other on the same connection are handled at the
+ * same time, and their answers go back in the order they're done. The caller matches
+ * them up by call id, see NioClient.
+ *
+ * A connection that breaks is closed on its own. If the selector itself fails, the
+ * server stops: it closes all connections, so their callers find out, and exports no
+ * more objects.
+ */
+final class NioServer implements Runnable {
+
+	private static Logger logger = Logger.getLogger(NioServer.class.getName());
+
+	private static class Exported {
+		final Remote impl;
+		final RemoteStub stub;
+		final MethodTable methods;
+
+		Exported(Remote impl, RemoteStub stub, MethodTable methods) {
+			this.impl = impl;
+			this.stub = stub;
+			this.methods = methods;
+		}
+	}
+
+	private final String host;
+	private final ServerSocketChannel acceptor;
+	private final Selector selector;
+	private final ExecutorService workers;
+	private final ConcurrentMap<Long, Exported> exports = new ConcurrentHashMap<>();
+	// By object rather than by equals, like RMI's export table
+	private final Map<Remote, Exported> byImpl = new IdentityHashMap<>();
+	// Random, so stubs of a previous run of the server don't call the wrong object
+	private final SecureRandom ids = new SecureRandom();
+	private volatile boolean stopped;
+
+	NioServer(String host, int port, int threads) throws IOException {
+		this.host = host;
+		this.acceptor = ServerSocketChannel.open();
+		acceptor.bind(new InetSocketAddress(port));
+		acceptor.configureBlocking(false);
+		this.selector = Selector.open();
+		acceptor.register(selector, SelectionKey.OP_ACCEPT);
+		this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "transport-server-call");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// like RMI, a server with exported objects keeps the JVM running
+		Thread thread = new Thread(this, "transport-server");
+		thread.start();
+		logger.log(Level.INFO, "<{0}> Transport listening", host + ":" + getPort());
+	}
+
+	int getPort() {
+		return acceptor.socket().getLocalPort();
+	}
+
+	/****************
+	 * EXPORT TABLE *
+	 ****************/
+
+	synchronized Remote export(Remote impl) throws ClassNotFoundException, ExportException {
+		if (stopped)
+			throw new ExportException("<" + host + ":" + getPort() + "> Transport stopped");
+		Exported exported = byImpl.get(impl);
+		if (exported == null) {
+			Class<?>[] interfaces = MethodTable.remoteInterfacesOf(impl.getClass());
+			if (interfaces.length == 0)
+				throw new IllegalArgumentException("<" + impl + "> Implements no remote interface");
+			long id;
+			do {
+				id = ids.nextLong();
+			} while (exports.containsKey(id));
+			exported = new Exported(impl, new RemoteStub(host, getPort(), id, interfaces), MethodTable.of(interfaces));
+			exports.put(id, exported);
+			byImpl.put(impl, exported);
+		}
+		return (Remote) exported.stub.toProxy();
+	}
+
+	synchronized boolean unexport(Remote impl) {
+		Exported exported = byImpl.remove(impl);
+		if (exported == null)
+			return false;
+		exports.remove(exported.stub.getObjectId());
+		return true;
+	}
+
+	// The stub to send instead of an object exported here, or null
+	synchronized RemoteStub getStubOf(Remote impl) {
+		Exported exported = byImpl.get(impl);
+		return exported == null ? null : exported.stub;
+	}
+
+	/************
+	 * SELECTOR *
+	 ************/
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+						serve(key);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.SEVERE, "<" + host + ":" + getPort() + "> Transport selector failed, stopping", e);
+			stop();
+		}
+	}
+
+	// A connection that can't be accepted is dropped, the next one may well work
+	private void accept() {
+		SocketChannel socket = null;
+		try {
+			socket = acceptor.accept();
+			if (socket == null)
+				return;
+			FrameChannel channel = new FrameChannel(socket);
+			channel.register(selector, channel);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "<" + host + ":" + getPort() + "> Could not accept a connection", e);
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException closing) {
+					// dropped anyway
+				}
+			}
+		}
+	}
+
+	private void serve(SelectionKey key) {
+		FrameChannel channel = (FrameChannel) key.attachment();
+		try {
+			if (key.isWritable())
+				channel.flush();
+			if (key.isReadable() && !channel.read(frame -> workers.execute(() -> call(channel, frame))))
+				channel.close();
+		} catch (IOException | CancelledKeyException e) {
+			logger.log(Level.FINE, "<" + channel + "> Dropping a broken connection", e);
+			channel.close();
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "<" + channel + "> Dropping a connection that failed", e);
+			channel.close();
+		}
+	}
+
+	// Closes every connection, the calls still running answer into closed ones
+	private void stop() {
+		stopped = true;
+		try {
+			acceptor.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		if (selector.isOpen()) {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof FrameChannel)
+					((FrameChannel) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+		workers.shutdown();
+	}
+
+	/*********
+	 * CALLS *
+	 *********/
+
+	// On a worker thread
+	private void call(FrameChannel channel, byte[] frame) {
+		Wire.Input in;
+		try {
+			in = new Wire.Input(frame);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "<" + channel + "> Unreadable request", e);
+			channel.close();
+			return;
+		}
+		Exported exported;
+		int index;
+		Object[] args;
+		try {
+			exported = exports.get(in.readLong());
+			if (exported == null)
+				throw new NoSuchObjectException("No such object in table");
+			index = in.readUnsignedShort();
+			if (index >= exported.methods.size())
+				throw new UnmarshalException("No method " + index + " in " + exported.stub);
+			args = new Object[exported.methods.get(index).getParameterCount()];
+			for (int i = 0; i < args.length; i++)
+				args[i] = in.readObject();
+		} catch (NoSuchObjectException | UnmarshalException e) {
+			reply(channel, in.callId, e, true);
+			return;
+		} catch (IOException | ClassNotFoundException | RuntimeException e) {
+			reply(channel, in.callId, new UnmarshalException("Could not read the call", e), true);
+			return;
+		}
+		Object result;
+		boolean thrown = false;
+		try {
+			result = invoke(exported.methods.getHandle(index), exported.impl, args);
+		} catch (Throwable e) {
+			result = e;
+			thrown = true;
+		}
+		reply(channel, in.callId, result, thrown);
+	}
+
+	private static Object invoke(MethodHandle handle, Remote impl, Object[] args) throws Throwable {
+		return (Object) handle.invokeExact((Object) impl, args);
+	}
+
+	private void reply(FrameChannel channel, long callId, Object result, boolean thrown) {
+		ByteBuffer frame;
+		try {
+			Wire.Output out = new Wire.Output(callId, thrown ? Wire.THROWN : Wire.RETURNED, this);
+			out.writeObject(result);
+			frame = out.toFrame();
+		} catch (IOException e) {
+			try {
+				Wire.Output out = new Wire.Output(callId, Wire.THROWN, this);
+				out.writeObject(new MarshalException("Could not write the answer", e));
+				frame = out.toFrame();
+			} catch (IOException again) {
+				logger.log(Level.SEVERE, "<" + channel + "> Could not write an answer", again);
+				channel.close();
+				return;
+			}
+		}
+		try {
+			channel.send(frame);
+		} catch (IOException e) {
+			// the caller is gone, and finds out when its connection breaks
+			channel.close();
+		}
+	}
+}
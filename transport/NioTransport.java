@@ -0,0 +1,103 @@
+package transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.ExportException;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * Exports remote objects over a non-blocking socket transport instead of RMI, the way
+ * UnicastRemoteObject does for RMI. The stubs it hands out implement the same remote
+ * interfaces and can be passed around like RMI stubs, through RMI calls as well. Only
+ * the RMI registry won't take them, so whatever is looked up there stays on RMI.
+ *
+ * Compared to RMI, a call is one small binary frame (see Wire) on one of a few shared
+ * connections per server, rather than a serialized call on a connection of its own
+ * thread, and the server calls the method through a method handle. The connections are
+ * multiplexed: any number of calls can wait for their answers on the same connection.
+ *
+ * Settings:
+ * -Dtransport.port (any free port), -Dtransport.hostname (java.rmi.server.hostname, or
+ * the address of the local host), -Dtransport.serverThreads (32),
+ * -Dtransport.connections (2, per server called), -Dtransport.connectTimeoutMillis
+ * (5000), -Dtransport.callTimeoutMillis (60000, 0 to wait as long as the connection
+ * lasts) and -Dtransport.callbackThreads (4, that complete the futures of answers).
+ *
+ * There's no distributed garbage collection: objects stay exported until unexported.
+ */
+public class NioTransport {
+
+	private static NioServer server;
+	private static NioClient client;
+
+	private NioTransport() {
+	}
+
+	/**
+	 * Exports the object over the configured transport: over this one if it's "nio",
+	 * and over RMI otherwise.
+	 *
+	 * @return the stub of the object
+	 */
+	public static Remote export(Remote obj, String transport) throws RemoteException {
+		if ("nio".equals(transport))
+			return exportObject(obj);
+		return UnicastRemoteObject.exportObject(obj, 0);
+	}
+
+	/**
+	 * Exports the object on the server of this JVM, which starts listening the first
+	 * time. Exporting it again returns an equal stub.
+	 *
+	 * @return the stub of the object, which implements all its remote interfaces
+	 */
+	public static Remote exportObject(Remote obj) throws RemoteException {
+		try {
+			return getServer().export(obj);
+		} catch (IOException | ClassNotFoundException e) {
+			throw new ExportException("Could not export " + obj, e);
+		}
+	}
+
+	/**
+	 * Calls to the object fail with a NoSuchObjectException from now on.
+	 *
+	 * @return false if the object wasn't exported
+	 */
+	public static boolean unexportObject(Remote obj) {
+		NioServer running = getServerIfRunning();
+		return running != null && running.unexport(obj);
+	}
+
+	private static synchronized NioServer getServer() throws IOException {
+		if (server == null) {
+			String host = System.getProperty("transport.hostname", System.getProperty("java.rmi.server.hostname"));
+			if (host == null)
+				host = InetAddress.getLocalHost().getHostAddress();
+			server = new NioServer(host, Integer.getInteger("transport.port", 0),
+					Integer.getInteger("transport.serverThreads", 32));
+		}
+		return server;
+	}
+
+	static synchronized NioServer getServerIfRunning() {
+		return server;
+	}
+
+	// A client whose selector failed is replaced, the server isn't: its stubs are out there
+	static synchronized NioClient getClient() throws RemoteException {
+		if (client == null || client.isStopped()) {
+			try {
+				client = new NioClient(Integer.getInteger("transport.connections", 2),
+						Integer.getInteger("transport.connectTimeoutMillis", 5000),
+						Long.getLong("transport.callTimeoutMillis", 60000),
+						Integer.getInteger("transport.callbackThreads", 4));
+			} catch (IOException e) {
+				throw new RemoteException("Could not start the transport client", e);
+			}
+		}
+		return client;
+	}
+}
@@ -0,0 +1,174 @@
+package transport;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.UnexpectedException;
+import java.rmi.UnmarshalException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The client end of an object exported with NioTransport: a reference to the object on
+ * its server, and the handler of the proxies that call it.
+ *
+ * Like an RMI stub it can be sent anywhere, through RMI as well, and calls the object
+ * from wherever it ends up. Stubs of the same object are equal.
+ */
+final class RemoteStub implements InvocationHandler, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String host;
+	private final int port;
+	private final long objectId;
+	private final String[] interfaceNames;
+	private transient MethodTable methods;
+
+	RemoteStub(String host, int port, long objectId, Class<?>[] interfaces) {
+		this.host = host;
+		this.port = port;
+		this.objectId = objectId;
+		this.interfaceNames = new String[interfaces.length];
+		for (int i = 0; i < interfaces.length; i++)
+			interfaceNames[i] = interfaces[i].getName();
+		this.methods = MethodTable.of(interfaces);
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	long getObjectId() {
+		return objectId;
+	}
+
+	MethodTable getMethods() throws ClassNotFoundException {
+		if (methods == null) {
+			Class<?>[] interfaces = new Class<?>[interfaceNames.length];
+			for (int i = 0; i < interfaces.length; i++)
+				interfaces[i] = Class.forName(interfaceNames[i]);
+			methods = MethodTable.of(interfaces);
+		}
+		return methods;
+	}
+
+	Object toProxy() throws ClassNotFoundException {
+		return Proxy.newProxyInstance(RemoteStub.class.getClassLoader(), getMethods().getInterfaces(), this);
+	}
+
+	void writeTo(Wire.Output out) throws IOException {
+		out.writeUTF(host);
+		out.writeInt(port);
+		out.writeLong(objectId);
+		out.writeByte(interfaceNames.length);
+		for (String name : interfaceNames)
+			out.writeUTF(name);
+	}
+
+	static RemoteStub readFrom(Wire.Input in) throws IOException, ClassNotFoundException {
+		String host = in.readUTF();
+		int port = in.readInt();
+		long objectId = in.readLong();
+		Class<?>[] interfaces = new Class<?>[in.readUnsignedByte()];
+		for (int i = 0; i < interfaces.length; i++)
+			interfaces[i] = Class.forName(in.readUTF());
+		return new RemoteStub(host, port, objectId, interfaces);
+	}
+
+	/**
+	 * Sends the call and waits for the answer. The exceptions are the same as those of
+	 * an RMI stub: the method's own, RemoteExceptions when the call fails on the way,
+	 * and UnexpectedException for checked exceptions the method doesn't declare.
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (getMethods().indexOf(method) < 0)
+			return invokeObjectMethod(proxy, method, args);
+
+		try {
+			return invokeAsync(method, args).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for the answer to " + method.getName(), e);
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Sends the call without waiting for the answer, see Async.
+	 *
+	 * @return completes with the answer, or with the exception invoke would throw
+	 */
+	CompletableFuture<Object> invokeAsync(Method method, Object[] args) {
+		CompletableFuture<Object> answer = new CompletableFuture<>();
+		try {
+			CompletableFuture<Object> call = NioTransport.getClient().call(this, getMethods().indexOf(method), args);
+			call.whenComplete((value, failure) -> {
+				if (failure == null)
+					answer.complete(value);
+				else
+					answer.completeExceptionally(asThrownBy(method, failure));
+			});
+			answer.whenComplete((value, failure) -> {
+				if (answer.isCancelled())
+					call.cancel(false);
+			});
+		} catch (RemoteException e) {
+			answer.completeExceptionally(e);
+		} catch (ClassNotFoundException e) {
+			answer.completeExceptionally(new UnmarshalException("Interface of the stub not found", e));
+		}
+		return answer;
+	}
+
+	// What a stub throws for the failure of a call of the method
+	static Throwable asThrownBy(Method method, Throwable failure) {
+		if (failure instanceof RuntimeException || failure instanceof Error || failure instanceof RemoteException)
+			return failure;
+		for (Class<?> declared : method.getExceptionTypes()) {
+			if (declared.isInstance(failure))
+				return failure;
+		}
+		return new UnexpectedException("Undeclared checked exception", (Exception) failure);
+	}
+
+	private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "equals":
+			return args[0] != null && Proxy.isProxyClass(args[0].getClass())
+					&& equals(Proxy.getInvocationHandler(args[0]));
+		case "hashCode":
+			return hashCode();
+		default:
+			return toString();
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof RemoteStub))
+			return false;
+		RemoteStub other = (RemoteStub) obj;
+		return objectId == other.objectId && port == other.port && host.equals(other.host);
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(objectId) * 31 + port;
+	}
+
+	@Override
+	public String toString() {
+		return "NIO stub of object " + objectId + " at " + host + ":" + port + " " + Arrays.toString(interfaceNames);
+	}
+}
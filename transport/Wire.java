@@ -0,0 +1,328 @@
+package transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import shared.AvailabilityChange;
+import shared.CarTypeSelection;
+import shared.ReservationConstraints;
+
+/**
+ * The binary format of the transport.
+ *
+ * A frame is its length, the id of the call, its kind and then the body. A request has
+ * the id of the remote object, the number of the method (see MethodTable) and the
+ * arguments, an answer has the returned value or the thrown exception.
+ *
+ * Values start with a tag byte. Primitives, strings, dates, collections and the small
+ * value classes of the companies' interface are written field by field. Externalizable
+ * classes write themselves, as they do for RMI but without the class descriptions of
+ * default serialization. Remote objects are written as a reference to the object on its
+ * server, see RemoteStub. Anything else, e.g. exceptions, falls back to serialization,
+ * of classes of the JDK and of the shared package only.
+ */
+final class Wire {
+
+	static final byte REQUEST = 1;
+	static final byte RETURNED = 2;
+	static final byte THROWN = 3;
+
+	// Frame length, call id and kind
+	static final int HEADER_BYTES = 4 + 8 + 1;
+	static final int MAX_FRAME_BYTES = 1 << 28;
+
+	private static final byte NULL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte STRING = 6;
+	private static final byte DATE = 7;
+	private static final byte LIST = 8;
+	private static final byte SET = 9;
+	private static final byte BITSET = 10;
+	private static final byte CONSTRAINTS = 11;
+	private static final byte SELECTION = 12;
+	private static final byte CHANGE = 13;
+	private static final byte EXTERNAL = 14;
+	private static final byte REMOTE = 15;
+	private static final byte SERIAL = 16;
+
+	// What may be deserialized: the value classes of the interfaces and of the JDK, e.g. exceptions
+	private static final ObjectInputFilter SERIAL_CLASSES = ObjectInputFilter.Config.createFilter("java.**;shared.**;!*");
+
+	private static final ConcurrentMap<String, Constructor<?>> constructors = new ConcurrentHashMap<>();
+
+	private Wire() {
+	}
+
+	/**
+	 * Writes a frame. The length is filled in by toFrame, once the body is written.
+	 */
+	static class Output extends DataOutputStream implements ObjectOutput {
+
+		// Remote objects exported here are written as their stub, see RemoteStub
+		private final NioServer server;
+
+		Output(long callId, byte kind, NioServer server) throws IOException {
+			super(new Buffer());
+			this.server = server;
+			writeInt(0);
+			writeLong(callId);
+			writeByte(kind);
+		}
+
+		ByteBuffer toFrame() {
+			Buffer buffer = (Buffer) out;
+			int length = buffer.size() - 4;
+			buffer.bytes()[0] = (byte) (length >>> 24);
+			buffer.bytes()[1] = (byte) (length >>> 16);
+			buffer.bytes()[2] = (byte) (length >>> 8);
+			buffer.bytes()[3] = (byte) length;
+			return ByteBuffer.wrap(buffer.bytes(), 0, buffer.size());
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeInt(bytes.length);
+			write(bytes);
+		}
+
+		@Override
+		public void writeObject(Object obj) throws IOException {
+			if (obj == null) {
+				writeByte(NULL);
+			} else if (obj instanceof Boolean) {
+				writeByte((Boolean) obj ? TRUE : FALSE);
+			} else if (obj instanceof Integer) {
+				writeByte(INT);
+				writeInt((Integer) obj);
+			} else if (obj instanceof Long) {
+				writeByte(LONG);
+				writeLong((Long) obj);
+			} else if (obj instanceof Double) {
+				writeByte(DOUBLE);
+				writeDouble((Double) obj);
+			} else if (obj instanceof String) {
+				writeByte(STRING);
+				writeString((String) obj);
+			} else if (obj.getClass() == Date.class) {
+				writeByte(DATE);
+				writeLong(((Date) obj).getTime());
+			} else if (obj instanceof BitSet) {
+				writeByte(BITSET);
+				writeWords((BitSet) obj);
+			} else if (obj.getClass() == ReservationConstraints.class) {
+				ReservationConstraints constraints = (ReservationConstraints) obj;
+				writeByte(CONSTRAINTS);
+				writeLong(constraints.getStartTime());
+				writeLong(constraints.getEndTime());
+				writeObject(constraints.getCarType());
+			} else if (obj.getClass() == CarTypeSelection.class) {
+				CarTypeSelection selection = (CarTypeSelection) obj;
+				writeByte(SELECTION);
+				writeLong(selection.getCatalogVersion());
+				writeWords(selection.getIds());
+			} else if (obj.getClass() == AvailabilityChange.class) {
+				AvailabilityChange change = (AvailabilityChange) obj;
+				writeByte(CHANGE);
+				writeObject(change.getCarType());
+				writeLong(change.getStartTime());
+				writeLong(change.getEndTime());
+			} else if (obj instanceof Remote && toStub((Remote) obj) != null) {
+				writeByte(REMOTE);
+				toStub((Remote) obj).writeTo(this);
+			} else if (obj instanceof Externalizable) {
+				writeByte(EXTERNAL);
+				writeString(obj.getClass().getName());
+				((Externalizable) obj).writeExternal(this);
+			} else if (obj instanceof List || obj instanceof Set) {
+				Collection<?> collection = (Collection<?>) obj;
+				writeByte(obj instanceof List ? LIST : SET);
+				writeInt(collection.size());
+				for (Object element : collection)
+					writeObject(element);
+			} else if (obj instanceof Serializable) {
+				writeByte(SERIAL);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (ObjectOutputStream serial = new ObjectOutputStream(bytes)) {
+					serial.writeObject(obj);
+				}
+				writeInt(bytes.size());
+				bytes.writeTo(this);
+			} else {
+				throw new NotSerializableException(obj.getClass().getName());
+			}
+		}
+
+		private void writeWords(BitSet bits) throws IOException {
+			long[] words = bits.toLongArray();
+			writeInt(words.length);
+			for (long word : words)
+				writeLong(word);
+		}
+
+		// The stub of a remote object, or null if it's neither a stub nor exported here
+		private RemoteStub toStub(Remote obj) {
+			if (Proxy.isProxyClass(obj.getClass()) && Proxy.getInvocationHandler(obj) instanceof RemoteStub)
+				return (RemoteStub) Proxy.getInvocationHandler(obj);
+			return server == null ? null : server.getStubOf(obj);
+		}
+	}
+
+	/**
+	 * Reads the body of a frame, after the header.
+	 */
+	static class Input extends DataInputStream implements ObjectInput {
+
+		final long callId;
+		final byte kind;
+
+		Input(byte[] frame) throws IOException {
+			super(new ByteArrayInputStream(frame));
+			callId = readLong();
+			kind = readByte();
+		}
+
+		private String readString() throws IOException {
+			byte[] bytes = new byte[readCount(1)];
+			readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		// A count sent by the peer, checked against what's left of the frame before anything is
+		// allocated for it, as every element takes at least the given number of bytes
+		private int readCount(int bytesEach) throws IOException {
+			int count = readInt();
+			if (count < 0 || (long) count * bytesEach > available())
+				throw new StreamCorruptedException("Count " + count + " doesn't fit in the rest of the frame");
+			return count;
+		}
+
+		@Override
+		public Object readObject() throws ClassNotFoundException, IOException {
+			byte tag = readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case FALSE:
+				return Boolean.FALSE;
+			case TRUE:
+				return Boolean.TRUE;
+			case INT:
+				return readInt();
+			case LONG:
+				return readLong();
+			case DOUBLE:
+				return readDouble();
+			case STRING:
+				return readString();
+			case DATE:
+				return new Date(readLong());
+			case BITSET:
+				return readWords();
+			case CONSTRAINTS:
+				long start = readLong();
+				long end = readLong();
+				return new ReservationConstraints(new Date(start), new Date(end), (String) readObject());
+			case SELECTION:
+				long version = readLong();
+				return new CarTypeSelection(version, readWords());
+			case CHANGE:
+				String carType = (String) readObject();
+				long from = readLong();
+				return new AvailabilityChange(carType, from, readLong());
+			case REMOTE:
+				return RemoteStub.readFrom(this).toProxy();
+			case EXTERNAL:
+				Externalizable external = newExternalizable(readString());
+				external.readExternal(this);
+				return external;
+			case LIST:
+			case SET:
+				// every element has a tag at least
+				int size = readCount(1);
+				// a set is rebuilt as a HashSet, like serialization does for the usual HashSet
+				Collection<Object> collection = tag == LIST ? new ArrayList<>(size) : new HashSet<>();
+				for (int i = 0; i < size; i++)
+					collection.add(readObject());
+				return collection;
+			case SERIAL:
+				byte[] bytes = new byte[readCount(1)];
+				readFully(bytes);
+				try (ObjectInputStream serial = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+					serial.setObjectInputFilter(SERIAL_CLASSES);
+					return serial.readObject();
+				}
+			default:
+				throw new StreamCorruptedException("Unknown tag " + tag);
+			}
+		}
+
+		private BitSet readWords() throws IOException {
+			long[] words = new long[readCount(8)];
+			for (int i = 0; i < words.length; i++)
+				words[i] = readLong();
+			return BitSet.valueOf(words);
+		}
+
+		private static Externalizable newExternalizable(String className) throws ClassNotFoundException, IOException {
+			Constructor<?> constructor = constructors.get(className);
+			if (constructor == null) {
+				Class<?> type = Class.forName(className);
+				if (!Externalizable.class.isAssignableFrom(type))
+					throw new InvalidClassException(className, "Not externalizable");
+				try {
+					constructor = type.getConstructor();
+				} catch (NoSuchMethodException e) {
+					throw new InvalidClassException(className, "No public constructor without arguments");
+				}
+				constructors.put(className, constructor);
+			}
+			try {
+				return (Externalizable) constructor.newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new InvalidClassException(className, "Could not be created: " + e);
+			}
+		}
+	}
+
+	// Hands out its array, so a frame can be sent without copying it
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer() {
+			super(256);
+		}
+
+		byte[] bytes() {
+			return buf;
+		}
+	}
+}